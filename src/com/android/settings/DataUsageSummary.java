@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -62,7 +60,6 @@ import android.content.Intent;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Color;
@@ -74,7 +71,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -85,9 +81,9 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.os.UserManager;
 import android.preference.Preference;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
@@ -97,7 +93,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -128,10 +123,12 @@ import android.widget.TextView;
 
 import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
+import com.android.settings.net.AppUsageData;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.NetworkStatsCache;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -148,7 +145,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -194,6 +190,9 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
 
+    /** Stats older than this are polled again when the screen is shown. */
+    private static final long STATS_MAX_AGE = 30 * DateUtils.SECOND_IN_MILLIS;
+
     private INetworkManagementService mNetworkService;
     private INetworkStatsService mStatsService;
     private NetworkPolicyManager mPolicyManager;
@@ -201,6 +200,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private SubscriptionManager mSubscriptionManager;
 
     private INetworkStatsSession mStatsSession;
+    private NetworkStatsCache mStatsCache;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -279,6 +279,12 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     /** Flag used to ignore listeners during binding. */
     private boolean mBinding;
 
+    /** Set while the chart is reloaded only because the stats were updated. */
+    private boolean mRefreshingStats;
+    /** Set until the chart loaded by updateBody() was bound, with its cycles. */
+    private boolean mFullBindPending;
+    private long mPausedRealtime;
+
     private UidDetailProvider mUidDetailProvider;
 
     /**
@@ -296,6 +302,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mStatsService = INetworkStatsService.Stub.asInterface(
                 ServiceManager.getService(Context.NETWORK_STATS_SERVICE));
         mPolicyManager = NetworkPolicyManager.from(context);
+        mStatsCache = NetworkStatsCache.getInstance(context);
         mTelephonyManager = TelephonyManager.from(context);
         mSubscriptionManager = SubscriptionManager.from(context);
 
@@ -443,8 +450,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mEmpty = (TextView) mHeader.findViewById(android.R.id.empty);
         mStupidPadding = mHeader.findViewById(R.id.stupid_padding);
 
-        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
-        mAdapter = new DataUsageAdapter(um, mUidDetailProvider, mInsetSide);
+        mAdapter = new DataUsageAdapter(mUidDetailProvider, mInsetSide);
         mListView.setOnItemClickListener(mListListener);
         mListView.setAdapter(mAdapter);
 
@@ -475,29 +481,48 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             }
         });
 
-        // kick off background task to update stats
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    // wait a few seconds before kicking off
-                    Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
-                    mStatsService.forceUpdate();
-                } catch (InterruptedException e) {
-                } catch (RemoteException e) {
+        // Show what is cached right away, and only ask for fresh stats if
+        // the last poll is too old.  The reload follows the update broadcast.
+        mStatsCache.addListener(mStatsListener);
+        final long lastUpdated = mStatsCache.getLastUpdatedRealtime();
+        if (mPausedRealtime != 0 && lastUpdated > mPausedRealtime) {
+            // Updated while we were paused
+            mStatsListener.onNetworkStatsUpdated();
+        }
+        if (SystemClock.elapsedRealtime() - lastUpdated > STATS_MAX_AGE) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mStatsService.forceUpdate();
+                    } catch (RemoteException e) {
+                    }
                 }
-                return null;
-            }
+            });
+        }
+    }
 
-            @Override
-            protected void onPostExecute(Void result) {
-                if (isAdded()) {
-                    updateBody();
-                }
-            }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    @Override
+    public void onPause() {
+        super.onPause();
+        mStatsCache.removeListener(mStatsListener);
+        mPausedRealtime = SystemClock.elapsedRealtime();
     }
 
+    private final NetworkStatsCache.Listener mStatsListener = new NetworkStatsCache.Listener() {
+        @Override
+        public void onNetworkStatsUpdated() {
+            if (isAdded() && mTemplate != null) {
+                // Only reload the chart, and the list after it, keeping the
+                // current tab, cycle and inspected range.  A full bind still
+                // pending is kept, the reload takes its place.
+                mRefreshingStats = !mFullBindPending;
+                getLoaderManager().restartLoader(LOADER_CHART_DATA,
+                        ChartDataLoader.buildArgs(mTemplate, mCurrentApp), mChartDataCallbacks);
+            }
+        }
+    };
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.data_usage, menu);
@@ -823,6 +848,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         // kick off loader for network history
         // TODO: consider chaining two loaders together instead of reloading
         // network history when showing app detail.
+        mRefreshingStats = false;
+        mFullBindPending = true;
         getLoaderManager().restartLoader(LOADER_CHART_DATA,
                 ChartDataLoader.buildArgs(mTemplate, mCurrentApp), mChartDataCallbacks);
 
@@ -1398,6 +1425,15 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             mChart.bindNetworkStats(mChartData.network);
             mChart.bindDetailNetworkStats(mChartData.detail);
 
+            if (mRefreshingStats) {
+                // Same network and cycle, only the numbers changed
+                mRefreshingStats = false;
+                updatePolicy(false);
+                updateDetailData();
+                return;
+            }
+            mFullBindPending = false;
+
             // calcuate policy cycles based on available data
             updatePolicy(true);
             updateAppDetail();
@@ -1416,24 +1452,22 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<AppUsageData> mSummaryCallbacks = new LoaderCallbacks<
+            AppUsageData>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
+        public Loader<AppUsageData> onCreateLoader(int id, Bundle args) {
             return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
+        public void onLoadFinished(Loader<AppUsageData> loader, AppUsageData data) {
+            mAdapter.bindData(data);
             updateEmptyVisible();
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
+        public void onLoaderReset(Loader<AppUsageData> loader) {
+            mAdapter.bindData(null);
             updateEmptyVisible();
         }
 
@@ -1662,127 +1696,28 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     public static class DataUsageAdapter extends BaseAdapter {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
-        private final UserManager mUm;
 
         private ArrayList<AppItem> mItems = Lists.newArrayList();
         private long mLargest;
 
-        public DataUsageAdapter(final UserManager userManager, UidDetailProvider provider, int insetSide) {
+        public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
-            mUm = userManager;
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link AppUsageData}, or {@code null} to clear list.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
+        public void bindData(AppUsageData data) {
             mItems.clear();
             mLargest = 0;
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-
-                final int collapseKey;
-                final int category;
-                final int userId = UserHandle.getUserId(uid);
-                if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
-                        if (userId != currentUserId) {
-                            // Add to a managed user item.
-                            final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
-                                    AppItem.CATEGORY_USER);
-                        }
-                        // Add to app item.
-                        collapseKey = uid;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // If it is a removed user add it to the removed users' key
-                        final UserInfo info = mUm.getUserInfo(userId);
-                        if (info == null) {
-                            collapseKey = UID_REMOVED;
-                            category = AppItem.CATEGORY_APP;
-                        } else {
-                            // Add to other user item.
-                            collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                            category = AppItem.CATEGORY_USER;
-                        }
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                    category = AppItem.CATEGORY_APP;
-                }
-                accumulate(collapseKey, knownItems, entry, category);
-            }
-
-            final int restrictedUidsMax = restrictedUids.length;
-            for (int i = 0; i < restrictedUidsMax; ++i) {
-                final int uid = restrictedUids[i];
-                // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                    continue;
-                }
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
-            }
-
-            if (!mItems.isEmpty()) {
-                final AppItem title = new AppItem();
-                title.category = AppItem.CATEGORY_APP_TITLE;
-                mItems.add(title);
+            if (data != null) {
+                mItems.addAll(data.items);
+                mLargest = data.largest;
             }
-
-            Collections.sort(mItems);
             notifyDataSetChanged();
         }
 
-        /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-         * Creates the item if needed.
-         *
-         * @param collapseKey the collapse key used to map the item.
-         * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
-         * @param itemCategory the item is categorized on the list view by this category. Must be
-         *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
-         */
-        private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
-            AppItem item = knownItems.get(collapseKey);
-            if (item == null) {
-                item = new AppItem(collapseKey);
-                item.category = itemCategory;
-                mItems.add(item);
-                knownItems.put(item.key, item);
-            }
-            item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
-            if (mLargest < item.total) {
-                mLargest = item.total;
-            }
-        }
-
         @Override
         public int getCount() {
             return mItems.size();
@@ -2369,7 +2304,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                 bindView(cachedDetail, target);
             } else {
                 target.setTag(new UidDetailTask(provider, item, target).executeOnExecutor(
-                        AsyncTask.THREAD_POOL_EXECUTOR));
+                        provider.getExecutor()));
             }
         }
 
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the application labels, sizes and icons of {@link ApplicationsState},
+ * so that the list of applications can be shown right away on a cold start.
+ *
+ * An entry is only used for the same apk (path and modification time), its label for the same
+ * locale and its icon for the same density.  The sizes are always recomputed in the background.
+ */
+class AppEntryCache {
+    static final String TAG = "AppEntryCache";
+
+    private static final String FILE_NAME = "app_entries.cache";
+
+    // Bump when the file format changes, older files are then ignored.
+    private static final int VERSION = 1;
+
+    static class Entry {
+        String packageName;
+        String sourceDir;
+        long apkModified;
+
+        String label;
+        String normalizedLabel;
+
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+
+        // PNG of the downscaled icon, or null
+        byte[] icon;
+
+        boolean isValidFor(ApplicationsState.AppEntry entry) {
+            return sourceDir.equals(entry.info.sourceDir)
+                    && apkModified == entry.apkFile.lastModified();
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final int mIconSize;
+
+    AppEntryCache(Context context) {
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+        mIconSize = context.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * Read the snapshot.  The labels not matching the locale and the icons not matching the
+     * density are dropped.
+     *
+     * @return the entries by package name, empty if there is no valid snapshot
+     */
+    HashMap<String, Entry> read(String locale, int density) {
+        final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return entries;
+            }
+            final boolean labelsValid = locale.equals(in.readUTF());
+            final boolean iconsValid = (density == in.readInt());
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                Entry entry = new Entry();
+                entry.packageName = in.readUTF();
+                entry.sourceDir = in.readUTF();
+                entry.apkModified = in.readLong();
+                final String label = in.readUTF();
+                final String normalizedLabel = in.readUTF();
+                if (labelsValid) {
+                    entry.label = label;
+                    entry.normalizedLabel = normalizedLabel;
+                }
+                entry.size = in.readLong();
+                entry.internalSize = in.readLong();
+                entry.externalSize = in.readLong();
+                entry.cacheSize = in.readLong();
+                entry.codeSize = in.readLong();
+                entry.dataSize = in.readLong();
+                entry.externalCodeSize = in.readLong();
+                entry.externalDataSize = in.readLong();
+                entry.externalCacheSize = in.readLong();
+                final int iconLength = in.readInt();
+                if (iconLength > 0) {
+                    byte[] icon = new byte[iconLength];
+                    in.readFully(icon);
+                    if (iconsValid) {
+                        entry.icon = icon;
+                    }
+                }
+                entries.put(entry.packageName, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // No snapshot yet
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + mFile.getBaseFile(), e);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return entries;
+    }
+
+    void write(String locale, int density, List<Entry> entries) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(locale);
+            out.writeInt(density);
+            out.writeInt(entries.size());
+            for (int i=0; i<entries.size(); i++) {
+                Entry entry = entries.get(i);
+                out.writeUTF(entry.packageName);
+                out.writeUTF(entry.sourceDir);
+                out.writeLong(entry.apkModified);
+                out.writeUTF(entry.label);
+                out.writeUTF(entry.normalizedLabel);
+                out.writeLong(entry.size);
+                out.writeLong(entry.internalSize);
+                out.writeLong(entry.externalSize);
+                out.writeLong(entry.cacheSize);
+                out.writeLong(entry.codeSize);
+                out.writeLong(entry.dataSize);
+                out.writeLong(entry.externalCodeSize);
+                out.writeLong(entry.externalDataSize);
+                out.writeLong(entry.externalCacheSize);
+                if (entry.icon != null) {
+                    out.writeInt(entry.icon.length);
+                    out.write(entry.icon);
+                } else {
+                    out.writeInt(0);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * @return the icon downscaled to the size of the list icons, as a PNG
+     */
+    byte[] encodeIcon(Drawable icon) {
+        int width = icon.getIntrinsicWidth();
+        int height = icon.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = height = mIconSize;
+        } else if (width > mIconSize || height > mIconSize) {
+            final float scale = Math.min((float) mIconSize / width, (float) mIconSize / height);
+            width = Math.max(1, Math.round(width * scale));
+            height = Math.max(1, Math.round(height * scale));
+        }
+        // Don't touch the bounds of a drawable the UI may be drawing
+        final Drawable.ConstantState state = icon.getConstantState();
+        if (state != null) {
+            icon = state.newDrawable();
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Rect oldBounds = new Rect(icon.getBounds());
+        icon.setBounds(0, 0, width, height);
+        icon.draw(new Canvas(bitmap));
+        icon.setBounds(oldBounds);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    static Drawable decodeIcon(Resources res, byte[] icon) {
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(icon, 0, icon.length);
+        return (bitmap != null) ? new BitmapDrawable(res, bitmap) : null;
+    }
+}
@@ -22,6 +22,8 @@ import android.os.UserHandle;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.R;
+
 import java.io.File;
 import java.text.Collator;
 import java.text.Normalizer;
@@ -30,7 +32,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -59,6 +67,15 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // A size request without an answer after this long is considered lost and issued again.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+
+    // Waiting longer than this for mEntriesMap counts as contention.
+    static final long LOCK_CONTENTION_THRESHOLD_NANOS = 100*1000;
+
+    // A session is rebuilt from scratch when more than 1/N of its list changed.
+    static final int MAX_INCREMENTAL_FRACTION = 4;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -113,16 +130,54 @@ public class ApplicationsState {
         boolean sizeStale;
         long sizeLoadStart;
 
+        // The icon is the downscaled one of AppEntryCache, to be reloaded.
+        boolean iconFromCache;
+        // Downscaled icon, as saved in AppEntryCache.
+        byte[] iconBytes;
+
         String normalizedLabel;
 
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        AppEntry(Context context, ApplicationInfo info, long id, AppEntryCache.Entry cached) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
+            if (cached != null && cached.isValidFor(this)) {
+                applyCached(context, cached);
+            }
             ensureLabel(context);
         }
+
+        private void applyCached(Context context, AppEntryCache.Entry cached) {
+            if (cached.label != null) {
+                this.label = cached.label;
+                this.normalizedLabel = cached.normalizedLabel;
+                this.mounted = true;
+            }
+            if (cached.icon != null) {
+                this.icon = AppEntryCache.decodeIcon(context.getResources(), cached.icon);
+                if (this.icon != null) {
+                    this.iconFromCache = true;
+                    this.iconBytes = cached.icon;
+                }
+            }
+            // Shown until they are recomputed, sizeStale stays set.
+            if (cached.size != SIZE_UNKNOWN) {
+                this.size = cached.size;
+                this.internalSize = cached.internalSize;
+                this.externalSize = cached.externalSize;
+                this.cacheSize = cached.cacheSize;
+                this.codeSize = cached.codeSize;
+                this.dataSize = cached.dataSize;
+                this.externalCodeSize = cached.externalCodeSize;
+                this.externalDataSize = cached.externalDataSize;
+                this.externalCacheSize = cached.externalCacheSize;
+                this.sizeStr = getSizeStr(context, this.size);
+                this.internalSizeStr = getSizeStr(context, this.internalSize);
+                this.externalSizeStr = getSizeStr(context, this.externalSize);
+            }
+        }
         
         void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
@@ -138,6 +193,15 @@ public class ApplicationsState {
         }
         
         boolean ensureIconLocked(Context context, PackageManager pm) {
+            if (this.iconFromCache) {
+                // Replace the downscaled icon with the real one.
+                this.iconFromCache = false;
+                if (this.apkFile.exists()) {
+                    this.icon = this.info.loadIcon(pm);
+                    return true;
+                }
+                this.icon = null;
+            }
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
                     this.icon = this.info.loadIcon(pm);
@@ -272,17 +336,40 @@ public class ApplicationsState {
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  mEntriesMap and mAppEntries can also be
+    // read without the lock, they are only modified while holding it.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
-    final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap
+            = new ConcurrentHashMap<String, AppEntry>();
+    final CopyOnWriteArrayList<AppEntry> mAppEntries = new CopyOnWriteArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
+    final AtomicLong mCurId = new AtomicLong(1);
+    // Incremented when the entries are dropped, so that entries created before
+    // are not added.  Synchronize on mEntriesMap.
+    int mEntriesGeneration;
     boolean mSessionsChanged;
 
+    // Number of times, and total time, the main thread had to wait for
+    // mEntriesMap.  Synchronize on mEntriesMap.
+    int mLockContentionCount;
+    long mLockContentionNanos;
+
+    // Size computations in flight, package name -> uptime of the request.
+    // Synchronize on mEntriesMap.
+    final HashMap<String, Long> mComputingSizePkgs = new HashMap<String, Long>();
+    final int mMaxSizeRequests;
+
+    // Snapshot of the entries saved by a previous process, consumed as entries
+    // are created.  Synchronize on mEntriesMap.
+    final AppEntryCache mEntryCache;
+    HashMap<String, AppEntryCache.Entry> mCachedEntries;
+
+    // Time it took to compute the sizes of all the applications.  Synchronize on mEntriesMap.
+    long mSizesComputeStart;
+    long mLastAllSizesComputedMillis = -1;
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
@@ -430,6 +517,9 @@ public class ApplicationsState {
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mMaxSizeRequests = Math.max(1, mContext.getResources().getInteger(
+                R.integer.config_max_package_size_requests));
+        mEntryCache = new AppEntryCache(mContext);
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -476,13 +566,48 @@ public class ApplicationsState {
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
 
+        // Packages changed since the last rebuild, or whether all of them may
+        // have.  Synchronized on mEntriesMap.
+        final HashSet<String> mChangedPackages = new HashSet<String>();
+        boolean mFullRebuildNeeded = true;
+
+        // What mLastAppList was built with.  Only touched by the loader thread.
+        AppFilter mLastFilter;
+        Comparator<AppEntry> mLastComparator;
+
+        // Packages currently shown by this session, their sizes are computed
+        // first.  Updated for each bound row, so it doesn't need mEntriesMap.
+        final Set<String> mVisiblePackages = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
 
+        /**
+         * Tell whether the given package is visible on screen, so that its size
+         * gets computed before the ones of the other packages.
+         */
+        public void setPackageVisible(String packageName, boolean visible) {
+            if (visible) {
+                if (mVisiblePackages.add(packageName)) {
+                    AppEntry entry = mEntriesMap.get(packageName);
+                    if (entry != null && needsSize(entry)
+                            && !mBackgroundHandler.hasMessages(
+                                    BackgroundHandler.MSG_LOAD_SIZES)) {
+                        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
+                    }
+                }
+            } else {
+                mVisiblePackages.remove(packageName);
+            }
+        }
+
         public void resume() {
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
+            final long start = System.nanoTime();
             synchronized (mEntriesMap) {
+                noteLockAcquiredLocked(start);
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
@@ -494,7 +619,9 @@ public class ApplicationsState {
 
         public void pause() {
             if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
+            final long start = System.nanoTime();
             synchronized (mEntriesMap) {
+                noteLockAcquiredLocked(start);
                 if (mResumed) {
                     mResumed = false;
                     mSessionsChanged = true;
@@ -508,7 +635,9 @@ public class ApplicationsState {
         // Creates a new list of app entries with the given filter and comparator.
         ArrayList<AppEntry> rebuild(AppFilter filter, Comparator<AppEntry> comparator) {
             synchronized (mRebuildSync) {
+                final long start = System.nanoTime();
                 synchronized (mEntriesMap) {
+                    noteLockAcquiredLocked(start);
                     mRebuildingSessions.add(this);
                     mRebuildRequested = true;
                     mRebuildAsync = false;
@@ -562,29 +691,50 @@ public class ApplicationsState {
             if (filter != null) {
                 filter.init();
             }
-            
-            List<ApplicationInfo> apps;
+
+            ArrayList<AppEntry> filteredApps = null;
+            ArrayList<ApplicationInfo> apps = null;
+            HashSet<String> changedPkgs = null;
             synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
+                final ArrayList<AppEntry> lastList = mLastAppList;
+                if (!mFullRebuildNeeded && lastList != null && filter == mLastFilter
+                        && comparator == mLastComparator
+                        && mChangedPackages.size() <= lastList.size()/MAX_INCREMENTAL_FRACTION) {
+                    changedPkgs = new HashSet<String>(mChangedPackages);
+                    apps = new ArrayList<ApplicationInfo>(changedPkgs.size());
+                    for (String pkg : changedPkgs) {
+                        int idx = indexOfApplicationInfoLocked(pkg);
+                        if (idx >= 0) {
+                            apps.add(mApplications.get(idx));
+                        }
+                    }
+                } else {
+                    apps = new ArrayList<ApplicationInfo>(mApplications);
+                }
+                mChangedPackages.clear();
+                mFullRebuildNeeded = false;
             }
 
-            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-            if (DEBUG) Log.i(TAG, "Rebuilding...");
-            for (int i=0; i<apps.size(); i++) {
-                ApplicationInfo info = apps.get(i);
-                if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+            if (changedPkgs != null) {
+                if (DEBUG) Log.i(TAG, "Updating " + changedPkgs.size() + " packages...");
+                filteredApps = applyChanges(mLastAppList, changedPkgs, apps,
+                        filter, comparator);
+            } else {
+                if (DEBUG) Log.i(TAG, "Rebuilding...");
+                filteredApps = new ArrayList<AppEntry>();
+                for (int i=0; i<apps.size(); i++) {
+                    ApplicationInfo info = apps.get(i);
+                    if (filter == null || filter.filterApp(info)) {
+                        AppEntry entry = getOrCreateEntry(info);
                         entry.ensureLabel(mContext);
                         if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
                         filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
                 }
+                Collections.sort(filteredApps, comparator);
             }
-
-            Collections.sort(filteredApps, comparator);
+            mLastFilter = filter;
+            mLastComparator = comparator;
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
@@ -599,15 +749,68 @@ public class ApplicationsState {
                             mMainHandler.sendMessage(msg);
                         }
                     }
+                } else {
+                    // This list is dropped, the next one can't be derived from mLastAppList.
+                    synchronized (mEntriesMap) {
+                        mFullRebuildNeeded = true;
+                    }
                 }
             }
 
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        /**
+         * Apply the changes of some packages to a sorted list: the entries of
+         * the changed packages are removed, then the ones still passing the
+         * filter are inserted back at their sorted position.
+         *
+         * @return the updated list, or lastList itself if nothing moved
+         */
+        private ArrayList<AppEntry> applyChanges(ArrayList<AppEntry> lastList,
+                HashSet<String> changedPkgs, ArrayList<ApplicationInfo> changedApps,
+                AppFilter filter, Comparator<AppEntry> comparator) {
+            ArrayList<AppEntry> list = new ArrayList<AppEntry>(lastList);
+            ArrayList<AppEntry> removed = new ArrayList<AppEntry>();
+            int[] removedPositions = new int[changedPkgs.size()];
+            for (int i=list.size()-1; i>=0 && removed.size()<changedPkgs.size(); i--) {
+                AppEntry entry = list.get(i);
+                if (changedPkgs.contains(entry.info.packageName)) {
+                    removedPositions[removed.size()] = i;
+                    removed.add(list.remove(i));
+                }
+            }
+
+            ArrayList<AppEntry> inserted = new ArrayList<AppEntry>(changedApps.size());
+            for (int i=0; i<changedApps.size(); i++) {
+                ApplicationInfo info = changedApps.get(i);
+                if (filter == null || filter.filterApp(info)) {
+                    AppEntry entry = getOrCreateEntry(info);
+                    entry.ensureLabel(mContext);
+                    int pos = Collections.binarySearch(list, entry, comparator);
+                    list.add(pos >= 0 ? pos : -pos-1, entry);
+                    inserted.add(entry);
+                }
+            }
+
+            // The adapter can skip a full refresh if the very same entries are
+            // still at the very same positions.
+            if (removed.size() == inserted.size()) {
+                boolean same = true;
+                for (int i=0; i<removed.size() && same; i++) {
+                    same = list.get(removedPositions[i]) == removed.get(i);
+                }
+                if (same) {
+                    return lastList;
+                }
+            }
+            return list;
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
+                mVisiblePackages.clear();
                 mSessions.remove(this);
             }
         }
@@ -634,12 +837,14 @@ public class ApplicationsState {
         if (mApplications == null) {
             mApplications = new ArrayList<ApplicationInfo>();
         }
+        noteAllPackagesChangedLocked();
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
             mEntriesMap.clear();
             mAppEntries.clear();
+            mEntriesGeneration++;
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
@@ -664,7 +869,7 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mComputingSizePkgs.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -674,6 +879,36 @@ public class ApplicationsState {
         return mHaveDisabledApps;
     }
 
+    /**
+     * @return how many times the main thread had to wait for the lock of the
+     * application list, which the loader thread only holds for short periods.
+     */
+    public int getLockContentionCount() {
+        synchronized (mEntriesMap) {
+            return mLockContentionCount;
+        }
+    }
+
+    void noteLockAcquiredLocked(long startNanos) {
+        final long waited = System.nanoTime() - startNanos;
+        if (waited > LOCK_CONTENTION_THRESHOLD_NANOS) {
+            mLockContentionCount++;
+            mLockContentionNanos += waited;
+            if (DEBUG_LOCKING) Log.v(TAG, "Waited " + waited + "ns for lock, "
+                    + mLockContentionCount + " times in " + mLockContentionNanos + "ns");
+        }
+    }
+
+    /**
+     * @return how long it took, in milliseconds, to compute the sizes of all the
+     * applications the last time they were all computed, or -1 if they never were.
+     */
+    public long getLastAllSizesComputedMillis() {
+        synchronized (mEntriesMap) {
+            return mLastAllSizesComputedMillis;
+        }
+    }
+
     void doPauseIfNeededLocked() {
         if (!mResumed) {
             return;
@@ -691,21 +926,25 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            return entry;
+        }
+        ApplicationInfo found = null;
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+        final long start = System.nanoTime();
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
+            noteLockAcquiredLocked(start);
+            for (int i=0; i<mApplications.size(); i++) {
+                ApplicationInfo info = mApplications.get(i);
+                if (packageName.equals(info.packageName)) {
+                    found = info;
+                    break;
                 }
             }
             if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        return found != null ? getOrCreateEntry(found) : null;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -718,25 +957,15 @@ public class ApplicationsState {
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        if (mEntriesMap.containsKey(packageName)) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        for (AppEntry entry : mAppEntries) {
+            sum += entry.cacheSize;
         }
         return sum;
     }
@@ -752,7 +981,9 @@ public class ApplicationsState {
 
     void addPackage(String pkgName) {
         try {
+            final long start = System.nanoTime();
             synchronized (mEntriesMap) {
+                noteLockAcquiredLocked(start);
                 if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
                 if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
                 if (!mResumed) {
@@ -776,6 +1007,7 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                notePackageChangedLocked(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -789,7 +1021,9 @@ public class ApplicationsState {
     }
 
     void removePackage(String pkgName) {
+        final long start = System.nanoTime();
         synchronized (mEntriesMap) {
+            noteLockAcquiredLocked(start);
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
             int idx = indexOfApplicationInfoLocked(pkgName);
             if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
@@ -802,6 +1036,7 @@ public class ApplicationsState {
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                notePackageChangedLocked(pkgName);
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -824,18 +1059,65 @@ public class ApplicationsState {
         addPackage(pkgName);
     }
     
-    AppEntry getEntryLocked(ApplicationInfo info) {
-        AppEntry entry = mEntriesMap.get(info.packageName);
-        if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
-        if (entry == null) {
+    void notePackageChangedLocked(String pkgName) {
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mChangedPackages.add(pkgName);
+        }
+    }
+
+    void noteAllPackagesChangedLocked() {
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mFullRebuildNeeded = true;
+        }
+    }
+
+    boolean needsSize(AppEntry entry) {
+        return entry.size == SIZE_UNKNOWN || entry.sizeStale;
+    }
+
+    /**
+     * Get the entry of an application, creating it if needed.  The label of a
+     * new entry is loaded without holding mEntriesMap.  If the package was
+     * removed meanwhile the new entry is returned without being added.
+     */
+    AppEntry getOrCreateEntry(ApplicationInfo info) {
+        while (true) {
+            AppEntryCache.Entry cached;
+            int generation;
+            synchronized (mEntriesMap) {
+                AppEntry entry = mEntriesMap.get(info.packageName);
+                if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": "
+                        + entry);
+                if (entry != null) {
+                    entry.info = info;
+                    return entry;
+                }
+                cached = mCachedEntries != null ? mCachedEntries.get(info.packageName) : null;
+                generation = mEntriesGeneration;
+            }
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
-        } else if (entry.info != info) {
-            entry.info = info;
+            AppEntry created = new AppEntry(mContext, info, mCurId.getAndIncrement(), cached);
+            synchronized (mEntriesMap) {
+                AppEntry entry = mEntriesMap.get(info.packageName);
+                if (entry != null) {
+                    entry.info = info;
+                    return entry;
+                }
+                if (generation != mEntriesGeneration) {
+                    // The entries were dropped while loading, the label may be stale.
+                    continue;
+                }
+                if (indexOfApplicationInfoLocked(info.packageName) < 0) {
+                    return created;
+                }
+                mEntriesMap.put(info.packageName, created);
+                mAppEntries.add(created);
+                if (mCachedEntries != null) {
+                    mCachedEntries.remove(info.packageName);
+                }
+                return created;
+            }
         }
-        return entry;
     }
 
     // --------------------------------------------------------------
@@ -858,9 +1140,9 @@ public class ApplicationsState {
         return SIZE_INVALID;
     }
 
-    private String getSizeStr(long size) {
+    private static String getSizeStr(Context context, long size) {
         if (size >= 0) {
-            return Formatter.formatFileSize(mContext, size);
+            return Formatter.formatFileSize(context, size);
         }
         return null;
     }
@@ -872,58 +1154,62 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_SAVE_CACHE = 5;
 
         boolean mRunning;
+        boolean mCacheLoaded;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
+                AppEntry entry = mEntriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(mContext, entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(mContext, entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(mContext, entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
+                        }
+                    }
+                    if (sizeChanged) {
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
+                    }
+                }
                 synchronized (mEntriesMap) {
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
-                        }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
-                        }
+                    if (sizeChanged) {
+                        notePackageChangedLocked(stats.packageName);
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    mComputingSizePkgs.remove(stats.packageName);
+                    if (!hasMessages(MSG_LOAD_SIZES)) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -937,6 +1223,12 @@ public class ApplicationsState {
 
         @Override
         public void handleMessage(Message msg) {
+            // The snapshot must be there before the first entries get created.
+            if (!mCacheLoaded) {
+                mCacheLoaded = true;
+                loadCache();
+            }
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
             synchronized (mEntriesMap) {
@@ -955,10 +1247,10 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    ArrayList<ApplicationInfo> toLoad = new ArrayList<ApplicationInfo>(6);
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                        for (int i=0; i<mApplications.size() && toLoad.size()<6; i++) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
@@ -967,12 +1259,16 @@ public class ApplicationsState {
                             }
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                                toLoad.add(info);
                             }
                         }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    // Labels are loaded without the lock, so the UI doesn't wait for them.
+                    int numDone = toLoad.size();
+                    for (int i=0; i<numDone; i++) {
+                        getOrCreateEntry(toLoad.get(i));
+                    }
 
                     if (numDone >= 6) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
@@ -982,25 +1278,25 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                    // mAppEntries is iterated without the lock, icons are only
+                    // loaded under the lock of their own entry.
+                    for (AppEntry entry : mAppEntries) {
+                        if (numDone >= 2) {
+                            break;
+                        }
+                        if (entry.icon == null || !entry.mounted || entry.iconFromCache) {
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext, mPm)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
@@ -1016,33 +1312,50 @@ public class ApplicationsState {
                 case MSG_LOAD_SIZES: {
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
                         long now = SystemClock.uptimeMillis();
+                        expireSizeRequestsLocked(now);
+
+                        // Packages on screen go first, then the others in list order.
+                        boolean pending = false;
+                        for (int i=0; i<mSessions.size(); i++) {
+                            Session s = mSessions.get(i);
+                            if (!s.mResumed) {
+                                continue;
+                            }
+                            for (String pkg : s.mVisiblePackages) {
+                                AppEntry entry = mEntriesMap.get(pkg);
+                                if (entry != null && needsSize(entry)) {
+                                    pending = true;
+                                    requestSizeLocked(entry, now);
+                                }
+                            }
+                        }
                         for (int i=0; i<mAppEntries.size(); i++) {
                             AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                            if (needsSize(entry)) {
+                                pending = true;
+                                if (mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                                    break;
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                                requestSizeLocked(entry, now);
                             }
                         }
+                        if (pending) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
+                            return;
+                        }
+
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                            if (mSizesComputeStart != 0) {
+                                mLastAllSizesComputedMillis = now - mSizesComputeStart;
+                                mSizesComputeStart = 0;
+                                Log.d(TAG, "All sizes computed in " + mLastAllSizesComputedMillis
+                                        + "ms, " + mMaxSizeRequests + " requests in flight");
+                            }
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+                            if (!hasMessages(MSG_SAVE_CACHE)) {
+                                sendEmptyMessage(MSG_SAVE_CACHE);
+                            }
                             mRunning = false;
                             Message m = mMainHandler.obtainMessage(
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
@@ -1051,8 +1364,99 @@ public class ApplicationsState {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
                     }
                 } break;
+                case MSG_SAVE_CACHE: {
+                    saveCache();
+                } break;
+            }
+        }
+
+        private void loadCache() {
+            final HashMap<String, AppEntryCache.Entry> cached = mEntryCache.read(
+                    getCacheLocale(), mContext.getResources().getDisplayMetrics().densityDpi);
+            if (DEBUG) Log.i(TAG, "Loaded " + cached.size() + " cached entries");
+            synchronized (mEntriesMap) {
+                mCachedEntries = cached.isEmpty() ? null : cached;
             }
         }
 
+        private void saveCache() {
+            ArrayList<AppEntry> appEntries = new ArrayList<AppEntry>(mAppEntries);
+
+            ArrayList<AppEntryCache.Entry> entries = new ArrayList<AppEntryCache.Entry>(
+                    appEntries.size());
+            for (int i=0; i<appEntries.size(); i++) {
+                AppEntry appEntry = appEntries.get(i);
+                AppEntryCache.Entry entry = new AppEntryCache.Entry();
+                Drawable icon;
+                synchronized (appEntry) {
+                    if (appEntry.label == null || !appEntry.mounted) {
+                        continue;
+                    }
+                    entry.packageName = appEntry.info.packageName;
+                    entry.sourceDir = appEntry.info.sourceDir;
+                    entry.apkModified = appEntry.apkFile.lastModified();
+                    entry.label = appEntry.label;
+                    entry.normalizedLabel = appEntry.getNormalizedLabel();
+                    entry.size = appEntry.size;
+                    entry.internalSize = appEntry.internalSize;
+                    entry.externalSize = appEntry.externalSize;
+                    entry.cacheSize = appEntry.cacheSize;
+                    entry.codeSize = appEntry.codeSize;
+                    entry.dataSize = appEntry.dataSize;
+                    entry.externalCodeSize = appEntry.externalCodeSize;
+                    entry.externalDataSize = appEntry.externalDataSize;
+                    entry.externalCacheSize = appEntry.externalCacheSize;
+                    entry.icon = appEntry.iconBytes;
+                    icon = appEntry.icon;
+                }
+                if (entry.icon == null && icon != null) {
+                    // Encoded once per entry, the apk can't change without a new entry.
+                    entry.icon = mEntryCache.encodeIcon(icon);
+                    synchronized (appEntry) {
+                        appEntry.iconBytes = entry.icon;
+                    }
+                }
+                entries.add(entry);
+            }
+            mEntryCache.write(getCacheLocale(),
+                    mContext.getResources().getDisplayMetrics().densityDpi, entries);
+            if (DEBUG) Log.i(TAG, "Saved " + entries.size() + " cached entries");
+        }
+
+        private String getCacheLocale() {
+            return mContext.getResources().getConfiguration().locale.toString();
+        }
+
+        /**
+         * Drop the size requests that never completed, so that they are issued again.
+         */
+        private void expireSizeRequestsLocked(long now) {
+            Iterator<Long> it = mComputingSizePkgs.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() < (now-SIZE_REQUEST_TIMEOUT)) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void requestSizeLocked(AppEntry entry, long now) {
+            String pkg = entry.info.packageName;
+            if (mComputingSizePkgs.containsKey(pkg)
+                    || mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                return;
+            }
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            if (mSizesComputeStart == 0) {
+                mSizesComputeStart = now;
+            }
+            entry.sizeLoadStart = now;
+            mComputingSizePkgs.put(pkg, now);
+            mPm.getPackageSizeInfo(pkg, mStatsObserver);
+        }
     }
 }
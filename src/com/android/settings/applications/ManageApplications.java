@@ -669,12 +669,19 @@ public class ManageApplications extends Fragment implements
                 // Don't have new list yet, but can continue using the old one.
                 return;
             }
+            if (entries != null && entries == mBaseEntries) {
+                // Nothing moved, only the rows on screen may need new sizes.
+                refreshActiveRows();
+                return;
+            }
             mBaseEntries = entries;
             if (mBaseEntries != null) {
                 mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             } else {
                 mEntries = null;
             }
+            // Something moved: ListView cannot be told about single positions, it only lays
+            // out again the rows on screen, which is as much as rebinding the moved ones.
             notifyDataSetChanged();
             mTab.updateStorageUsage();
 
@@ -708,6 +715,16 @@ public class ManageApplications extends Fragment implements
             }
         }
 
+        private void refreshActiveRows() {
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                synchronized (holder.entry) {
+                    holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
+                }
+            }
+            mTab.updateStorageUsage();
+        }
+
         @Override
         public void onRunningStateChanged(boolean running) {
             mTab.mOwner.getActivity().setProgressBarIndeterminateVisibility(running);
@@ -724,6 +741,11 @@ public class ManageApplications extends Fragment implements
             mTab.mListContainer.setVisibility(View.VISIBLE);
             mTab.mLoadingContainer.setVisibility(View.GONE);
             mWaitingForData = false;
+            if (apps == mBaseEntries) {
+                // The session only rebuilds the list when an entry moved.
+                refreshActiveRows();
+                return;
+            }
             mBaseEntries = apps;
             mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             notifyDataSetChanged();
@@ -795,6 +817,10 @@ public class ManageApplications extends Fragment implements
 
             // Bind the data efficiently with the holder
             ApplicationsState.AppEntry entry = mEntries.get(position);
+            if (holder.entry != null && holder.entry != entry) {
+                mSession.setPackageVisible(holder.entry.info.packageName, false);
+            }
+            mSession.setPackageVisible(entry.info.packageName, true);
             synchronized (entry) {
                 holder.entry = entry;
                 if (entry.label != null) {
@@ -835,6 +861,10 @@ public class ManageApplications extends Fragment implements
         @Override
         public void onMovedToScrapHeap(View view) {
             mActive.remove(view);
+            AppViewHolder holder = (AppViewHolder)view.getTag();
+            if (holder != null && holder.entry != null) {
+                mSession.setPackageVisible(holder.entry.info.packageName, false);
+            }
         }
     }
 
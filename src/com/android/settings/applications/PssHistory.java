@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.SparseIntArray;
+
+/**
+ * Recent PSS samples of the running processes, kept in ring buffers of a fixed number of
+ * process slots so that its memory use does not depend on the number of processes.  When all
+ * slots are taken, the process that was sampled the longest time ago loses its slot.  A slot
+ * is never taken from a process sampled in the current pass: the processes that do not fit
+ * are not recorded in that pass.
+ *
+ * Not thread safe, {@link RunningState} only uses it under its lock.
+ */
+class PssHistory {
+    static final int MAX_PROCESSES = 64;
+    static final int MAX_SAMPLES = 60;
+
+    // Samples in KB, MAX_SAMPLES for each slot
+    private final int[] mSamples = new int[MAX_PROCESSES * MAX_SAMPLES];
+    private final int[] mPids = new int[MAX_PROCESSES];
+    // Index of the next sample to write, and number of samples of each slot
+    private final int[] mHeads = new int[MAX_PROCESSES];
+    private final int[] mCounts = new int[MAX_PROCESSES];
+    // Pass of the last sample of each slot, 0 when the slot is free
+    private final int[] mLastPasses = new int[MAX_PROCESSES];
+
+    // Slot of each pid
+    private final SparseIntArray mSlots = new SparseIntArray(MAX_PROCESSES);
+    private int mPass;
+
+    /**
+     * Start a new round of samples.
+     */
+    void startPass() {
+        mPass++;
+    }
+
+    void addSample(int pid, long pssKb) {
+        if (pid <= 0) {
+            return;
+        }
+        int slot = mSlots.get(pid, -1);
+        if (slot < 0) {
+            slot = allocateSlot(pid);
+            if (slot < 0) {
+                return;
+            }
+        }
+        mSamples[slot * MAX_SAMPLES + mHeads[slot]] = (int) Math.min(pssKb, Integer.MAX_VALUE);
+        mHeads[slot] = (mHeads[slot] + 1) % MAX_SAMPLES;
+        if (mCounts[slot] < MAX_SAMPLES) {
+            mCounts[slot]++;
+        }
+        mLastPasses[slot] = mPass;
+    }
+
+    /**
+     * Copy the samples of a process into dest, oldest first.
+     *
+     * @return the number of samples copied
+     */
+    int getSamples(int pid, int[] dest) {
+        final int slot = mSlots.get(pid, -1);
+        if (slot < 0) {
+            return 0;
+        }
+        final int count = Math.min(mCounts[slot], dest.length);
+        final int base = slot * MAX_SAMPLES;
+        int index = (mHeads[slot] - count + MAX_SAMPLES) % MAX_SAMPLES;
+        for (int i=0; i<count; i++) {
+            dest[i] = mSamples[base + index];
+            index = (index + 1) % MAX_SAMPLES;
+        }
+        return count;
+    }
+
+    /**
+     * @return the pass of the last sample of a process, or 0 if there is none
+     */
+    int getLastPass(int pid) {
+        final int slot = mSlots.get(pid, -1);
+        return slot >= 0 ? mLastPasses[slot] : 0;
+    }
+
+    void clear() {
+        mSlots.clear();
+        for (int i=0; i<MAX_PROCESSES; i++) {
+            mCounts[i] = 0;
+            mHeads[i] = 0;
+            mLastPasses[i] = 0;
+        }
+    }
+
+    /**
+     * @return the slot given to pid, or -1 if every slot already has a sample of this pass
+     */
+    private int allocateSlot(int pid) {
+        int slot = 0;
+        for (int i=0; i<MAX_PROCESSES; i++) {
+            if (mLastPasses[i] == 0) {
+                slot = i;
+                break;
+            }
+            if (mLastPasses[i] < mLastPasses[slot]) {
+                slot = i;
+            }
+        }
+        if (mLastPasses[slot] != 0 && mLastPasses[slot] == mPass) {
+            return -1;
+        }
+        if (mLastPasses[slot] != 0) {
+            mSlots.delete(mPids[slot]);
+        }
+        mPids[slot] = pid;
+        mHeads[slot] = 0;
+        mCounts[slot] = 0;
+        mSlots.put(pid, slot);
+        return slot;
+    }
+}
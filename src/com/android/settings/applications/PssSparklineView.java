@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.android.settings.R;
+
+/**
+ * Sparkline of the recent memory use of a process, see {@link PssHistory}.
+ */
+public class PssSparklineView extends View {
+    private final int[] mSamples = new int[PssHistory.MAX_SAMPLES];
+    private final float[] mPoints = new float[(PssHistory.MAX_SAMPLES - 1) * 4];
+    private final Paint mPaint = new Paint();
+
+    private int mCount;
+    private int mPid;
+    private int mLastPass;
+
+    public PssSparklineView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPaint.setColor(getResources().getColor(R.color.memory_apps_usage));
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeWidth(getResources().getDisplayMetrics().density);
+        mPaint.setAntiAlias(true);
+    }
+
+    /**
+     * Show the samples of a process, or nothing if pid is 0.  Must be called with the lock of
+     * the state held.
+     */
+    void setProcess(RunningState state, int pid) {
+        final int lastPass = pid > 0 ? state.mPssHistory.getLastPass(pid) : 0;
+        if (pid == mPid && lastPass == mLastPass) {
+            return;
+        }
+        mPid = pid;
+        mLastPass = lastPass;
+        mCount = pid > 0 ? state.mPssHistory.getSamples(pid, mSamples) : 0;
+        // Takes a line when there are at least two samples
+        setVisibility(mCount >= 2 ? View.VISIBLE : View.GONE);
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mCount < 2) {
+            return;
+        }
+
+        int min = mSamples[0];
+        int max = mSamples[0];
+        for (int i=1; i<mCount; i++) {
+            min = Math.min(min, mSamples[i]);
+            max = Math.max(max, mSamples[i]);
+        }
+
+        final float left = getPaddingLeft();
+        final float top = getPaddingTop();
+        final float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        // The newest sample is always on the right edge.
+        final float step = width / (PssHistory.MAX_SAMPLES - 1);
+        final float start = left + width - step * (mCount - 1);
+
+        int n = 0;
+        float lastX = 0, lastY = 0;
+        for (int i=0; i<mCount; i++) {
+            final float x = start + step * i;
+            final float y = max > min
+                    ? top + height - height * (mSamples[i] - min) / (max - min)
+                    : top + height / 2;
+            if (i > 0) {
+                mPoints[n++] = lastX;
+                mPoints[n++] = lastY;
+                mPoints[n++] = x;
+                mPoints[n++] = y;
+            }
+            lastX = x;
+            lastY = y;
+        }
+        canvas.drawLines(mPoints, 0, n, mPaint);
+    }
+}
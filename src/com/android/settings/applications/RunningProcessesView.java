@@ -48,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
@@ -97,11 +98,21 @@ public class RunningProcessesView extends FrameLayout
         RunningState.BaseItem mItem;
         ActivityManager.RunningServiceInfo mService;
         ViewHolder mHolder;
+        RunningState mState;
+        int mPid;
         long mFirstRunTime;
         boolean mSetBackground;
+        // RunningState sequence of the item data shown by the view.
+        int mBoundSeq;
 
         void updateTime(Context context, StringBuilder builder) {
             TextView uptimeView = null;
+
+            if (mHolder.pssHistory != null) {
+                synchronized (mState.mLock) {
+                    mHolder.pssHistory.setProcess(mState, mPid);
+                }
+            }
             
             if (mItem instanceof RunningState.ServiceItem) {
                 // If we are displaying a service, then the service
@@ -158,6 +169,7 @@ public class RunningProcessesView extends FrameLayout
         public TextView description;
         public TextView size;
         public TextView uptime;
+        public PssSparklineView pssHistory;
         
         public ViewHolder(View v) {
             rootView = v;
@@ -166,6 +178,7 @@ public class RunningProcessesView extends FrameLayout
             description = (TextView)v.findViewById(R.id.description);
             size = (TextView)v.findViewById(R.id.size);
             uptime = (TextView)v.findViewById(R.id.uptime);
+            pssHistory = (PssSparklineView)v.findViewById(R.id.pss_history);
             v.setTag(this);
         }
         
@@ -188,7 +201,10 @@ public class RunningProcessesView extends FrameLayout
                 ai.mRootView = rootView;
                 ai.mItem = item;
                 ai.mHolder = this;
+                ai.mState = state;
+                ai.mPid = pidOf(item);
                 ai.mFirstRunTime = item.mActiveSince;
+                ai.mBoundSeq = item.mChangedSeq;
                 if (item.mBackground) {
                     description.setText(rootView.getContext().getText(R.string.cached));
                 } else {
@@ -203,6 +219,24 @@ public class RunningProcessesView extends FrameLayout
         }
     }
     
+    /**
+     * @return the process whose memory use the item shows, or 0 for none
+     */
+    static int pidOf(RunningState.BaseItem item) {
+        if (item instanceof RunningState.ProcessItem) {
+            return ((RunningState.ProcessItem)item).mPid;
+        }
+        if (item instanceof RunningState.MergedItem) {
+            RunningState.MergedItem mergedItem = (RunningState.MergedItem)item;
+            // Items merging other processes or users have no single history
+            if (mergedItem.mProcess != null && mergedItem.mOtherProcesses.size() == 0
+                    && mergedItem.mChildren.size() == 0) {
+                return mergedItem.mProcess.mPid;
+            }
+        }
+        return 0;
+    }
+
     static class TimeTicker extends TextView {
         public TimeTicker(Context context, AttributeSet attrs) {
             super(context, attrs);
@@ -214,8 +248,11 @@ public class RunningProcessesView extends FrameLayout
         final LayoutInflater mInflater;
         boolean mShowBackground;
         ArrayList<RunningState.MergedItem> mOrigItems;
+        int mOrigGeneration;
         final ArrayList<RunningState.MergedItem> mItems
                 = new ArrayList<RunningState.MergedItem>();
+        final ArrayList<RunningState.MergedItem> mTmpItems
+                = new ArrayList<RunningState.MergedItem>();
         
         ServiceListAdapter(RunningState state) {
             mState = state;
@@ -229,7 +266,8 @@ public class RunningProcessesView extends FrameLayout
                 mShowBackground = showBackground;
                 mState.setWatchingBackgroundItems(showBackground);
                 refreshItems();
-                refreshUi(true);
+                notifyDataSetChanged();
+                refreshUi(false);
             }
         }
 
@@ -237,21 +275,30 @@ public class RunningProcessesView extends FrameLayout
             return mShowBackground;
         }
 
-        void refreshItems() {
-            ArrayList<RunningState.MergedItem> newItems =
-                mShowBackground ? mState.getCurrentBackgroundItems()
-                        : mState.getCurrentMergedItems();
-            if (mOrigItems != newItems) {
+        /**
+         * @return whether the rows changed, otherwise only the items they show may have
+         */
+        boolean refreshItems() {
+            synchronized (mState.mLock) {
+                ArrayList<RunningState.MergedItem> newItems =
+                    mShowBackground ? mState.getCurrentBackgroundItems()
+                            : mState.getCurrentMergedItems();
+                final int generation = mState.getItemsGeneration();
+                if (mOrigItems == newItems && mOrigGeneration == generation) {
+                    return false;
+                }
                 mOrigItems = newItems;
-                if (newItems == null) {
-                    mItems.clear();
-                } else {
-                    mItems.clear();
+                mOrigGeneration = generation;
+                mTmpItems.clear();
+                mTmpItems.addAll(mItems);
+                mItems.clear();
+                if (newItems != null) {
                     mItems.addAll(newItems);
                     if (mShowBackground) {
                         Collections.sort(mItems, mState.mBackgroundComparator);
                     }
                 }
+                return !mItems.equals(mTmpItems);
             }
         }
         
@@ -320,8 +367,11 @@ public class RunningProcessesView extends FrameLayout
     void refreshUi(boolean dataChanged) {
         if (dataChanged) {
             ServiceListAdapter adapter = mAdapter;
-            adapter.refreshItems();
-            adapter.notifyDataSetChanged();
+            if (adapter.refreshItems()) {
+                adapter.notifyDataSetChanged();
+            } else {
+                rebindChangedItems();
+            }
         }
         
         if (mDataAvail != null) {
@@ -484,6 +534,18 @@ public class RunningProcessesView extends FrameLayout
         return false;
     }
 
+    /**
+     * Rebind the visible rows whose item changed since they were bound.
+     */
+    void rebindChangedItems() {
+        for (Map.Entry<View, ActiveItem> entry : mActiveItems.entrySet()) {
+            ActiveItem ai = entry.getValue();
+            if (ai.mItem.mChangedSeq != ai.mBoundSeq) {
+                entry.setValue(ai.mHolder.bind(mState, ai.mItem, mBuilder));
+            }
+        }
+    }
+
     void updateTimes() {
         Iterator<ActiveItem> it = mActiveItems.values().iterator();
         while (it.hasNext()) {
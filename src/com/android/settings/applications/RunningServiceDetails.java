@@ -66,6 +66,7 @@ public class RunningServiceDetails extends Fragment
     boolean mShowBackground;
 
     RunningState.MergedItem mMergedItem;
+    int mMergedItemSeq;
 
     View mRootView;
     ViewGroup mAllDetails;
@@ -195,27 +196,33 @@ public class RunningServiceDetails extends Fragment
     
     boolean findMergedItem() {
         RunningState.MergedItem item = null;
-        ArrayList<RunningState.MergedItem> newItems = mShowBackground
-                ? mState.getCurrentBackgroundItems() : mState.getCurrentMergedItems();
-        if (newItems != null) {
-            for (int i=0; i<newItems.size(); i++) {
-                RunningState.MergedItem mi = newItems.get(i);
-                if (mi.mUserId != mUserId) {
-                    continue;
-                }
-                if (mUid >= 0 && mi.mProcess != null && mi.mProcess.mUid != mUid) {
-                    continue;
-                }
-                if (mProcessName == null || (mi.mProcess != null
-                        && mProcessName.equals(mi.mProcess.mProcessName))) {
-                    item = mi;
-                    break;
+        synchronized (mState.mLock) {
+            ArrayList<RunningState.MergedItem> newItems = mShowBackground
+                    ? mState.getCurrentBackgroundItems() : mState.getCurrentMergedItems();
+            if (newItems != null) {
+                for (int i=0; i<newItems.size(); i++) {
+                    RunningState.MergedItem mi = newItems.get(i);
+                    if (mi.mUserId != mUserId) {
+                        continue;
+                    }
+                    if (mUid >= 0 && mi.mProcess != null && mi.mProcess.mUid != mUid) {
+                        continue;
+                    }
+                    if (mProcessName == null || (mi.mProcess != null
+                            && mProcessName.equals(mi.mProcess.mProcessName))) {
+                        item = mi;
+                        break;
+                    }
                 }
             }
         }
 
-        if (mMergedItem != item) {
+        // Merged items are reused across updates, so also check whether
+        // this one changed since it was last shown.
+        final int changedSeq = item != null ? item.mChangedSeq : 0;
+        if (mMergedItem != item || mMergedItemSeq != changedSeq) {
             mMergedItem = item;
+            mMergedItemSeq = changedSeq;
             return true;
         }
         return false;
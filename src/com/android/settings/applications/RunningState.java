@@ -37,6 +37,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -48,6 +49,7 @@ import com.android.settings.Utils;
 import com.android.settings.drawable.CircleFramedDrawable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -73,6 +75,19 @@ public class RunningState {
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
 
+    // The contents are polled faster right after a user action, and slower
+    // and slower, up to the max, while nothing changes.
+    static final long MIN_CONTENTS_UPDATE_DELAY = 500;
+    static final long MAX_CONTENTS_UPDATE_DELAY = 10000;
+    static final int USER_ACTION_FAST_UPDATES = 4;
+
+    // How long the memory use of an unchanged set of processes is reused.
+    static final long MAX_PSS_AGE = 10000;
+
+    // Memory use moving by less than this (in KB, summed over all processes)
+    // doesn't count as a change.
+    static final long PSS_CHANGE_THRESHOLD = 1024;
+
     static final int MAX_SERVICES = 100;
 
     final Context mApplicationContext;
@@ -128,20 +143,38 @@ public class RunningState {
     final SparseArray<UserState> mUsers = new SparseArray<UserState>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
 
+    // Scratch structures of update(), reused from one pass to the next.
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    final ArrayList<BaseItem> mTmpItems = new ArrayList<BaseItem>();
+    final ArrayList<MergedItem> mTmpMergedItems = new ArrayList<MergedItem>();
+    final ArrayList<MergedItem> mTmpBackgroundItems = new ArrayList<MergedItem>();
+    final ArrayList<MergedItem> mTmpUserBackgroundItems = new ArrayList<MergedItem>();
+    int[] mSparePids;
+    int mChangedItems;
+
     int mSequence = 0;
 
+    // Last memory use retrieved, only touched by the background thread.
+    int[] mLastPssPids;
+    long[] mLastPss;
+    long mLastPssTime;
+    boolean mLastUpdateQuiet;
+
     final Comparator<RunningState.MergedItem> mBackgroundComparator
         = new Comparator<RunningState.MergedItem>() {
             @Override
@@ -209,10 +242,13 @@ public class RunningState {
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
 
-    ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
-    ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
-    ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
-    ArrayList<MergedItem> mUserBackgroundItems = new ArrayList<MergedItem>();
+    // These lists are updated in place, hold mLock while reading them.
+    final ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
+    final ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
+    final ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
+    final ArrayList<MergedItem> mUserBackgroundItems = new ArrayList<MergedItem>();
+    // Incremented each time the lists above change.
+    int mItemsGeneration;
     
     int mNumBackgroundProcesses;
     long mBackgroundProcessMemory;
@@ -221,6 +257,47 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    long mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+    int mFastUpdatesRemaining;
+    final UpdateStats mUpdateStats = new UpdateStats();
+    // Recent memory use of the processes, shown as sparklines.
+    final PssHistory mPssHistory = new PssHistory();
+
+    /**
+     * Statistics about the polling of the running processes.
+     */
+    static class UpdateStats {
+        int polls;
+        int pssQueries;
+        int pssQueriesSkipped;
+        long lastPassMillis;
+        long totalPassMillis;
+        long nextDelayMillis;
+        int lastChangedItems;
+
+        UpdateStats copy() {
+            UpdateStats stats = new UpdateStats();
+            stats.polls = polls;
+            stats.lastChangedItems = lastChangedItems;
+            stats.pssQueries = pssQueries;
+            stats.pssQueriesSkipped = pssQueriesSkipped;
+            stats.lastPassMillis = lastPassMillis;
+            stats.totalPassMillis = totalPassMillis;
+            stats.nextDelayMillis = nextDelayMillis;
+            return stats;
+        }
+
+        @Override
+        public String toString() {
+            return "UpdateStats{polls=" + polls + ", pssQueries=" + pssQueries
+                    + ", pssQueriesSkipped=" + pssQueriesSkipped
+                    + ", lastPassMillis=" + lastPassMillis
+                    + ", totalPassMillis=" + totalPassMillis
+                    + ", nextDelayMillis=" + nextDelayMillis
+                    + ", lastChangedItems=" + lastChangedItems + "}";
+        }
+    }
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -241,12 +318,13 @@ public class RunningState {
                             return;
                         }
                     }
+                    final long start = SystemClock.uptimeMillis();
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
                     cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, nextUpdateDelay(SystemClock.uptimeMillis() - start));
                     break;
             }
         }
@@ -254,6 +332,33 @@ public class RunningState {
 
     final BackgroundHandler mBackgroundHandler;
 
+    /**
+     * Account for the pass that just ran and pick the delay before the next one.
+     */
+    private long nextUpdateDelay(long passMillis) {
+        synchronized (mLock) {
+            final long delay;
+            if (mFastUpdatesRemaining > 0) {
+                mFastUpdatesRemaining--;
+                mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                delay = MIN_CONTENTS_UPDATE_DELAY;
+            } else {
+                if (mLastUpdateQuiet) {
+                    mContentsUpdateDelay = Math.min(mContentsUpdateDelay * 2,
+                            MAX_CONTENTS_UPDATE_DELAY);
+                } else {
+                    mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
+                }
+                delay = mContentsUpdateDelay;
+            }
+            mUpdateStats.polls++;
+            mUpdateStats.lastPassMillis = passMillis;
+            mUpdateStats.totalPassMillis += passMillis;
+            mUpdateStats.nextDelayMillis = delay;
+            return delay;
+        }
+    }
+
     final Handler mHandler = new Handler() {
         int mNextUpdate = OnRefreshUiListener.REFRESH_TIME;
 
@@ -313,6 +418,9 @@ public class RunningState {
 
         int mCurSeq;
 
+        // Sequence of the last pass that changed what is shown for this item.
+        int mChangedSeq;
+
         long mActiveSince;
         long mSize;
         String mSizeStr;
@@ -595,7 +703,14 @@ public class RunningState {
             }
         }
 
+        /**
+         * @return whether the label, description or start time shown changed
+         */
         boolean update(Context context, boolean background) {
+            final boolean wasBackground = mBackground;
+            final CharSequence oldDisplayLabel = mDisplayLabel;
+            final String oldDescription = mDescription;
+            final long oldActiveSince = mActiveSince;
             mBackground = background;
 
             if (mUser != null) {
@@ -641,7 +756,8 @@ public class RunningState {
                 }
             }
 
-            return false;
+            return wasBackground != mBackground || oldDisplayLabel != mDisplayLabel
+                    || oldDescription != mDescription || oldActiveSince != mActiveSince;
         }
         
         boolean updateSize(Context context) {
@@ -756,6 +872,7 @@ public class RunningState {
         synchronized (mLock) {
             mResumed = true;
             mRefreshUiListener = listener;
+            mContentsUpdateDelay = CONTENTS_UPDATE_DELAY;
             // TODO: The set of users may have changed too, so we should probably recompute it
             // each time, but that might be costly. See http://b/18696308
             if (mInterestingConfigChanges.applyNewConfig(mApplicationContext.getResources())) {
@@ -773,11 +890,19 @@ public class RunningState {
 
     void updateNow() {
         synchronized (mLock) {
+            // The user did something, follow its effects closely for a while.
+            mFastUpdatesRemaining = USER_ACTION_FAST_UPDATES;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
     }
 
+    UpdateStats getUpdateStats() {
+        synchronized (mLock) {
+            return mUpdateStats.copy();
+        }
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -825,6 +950,11 @@ public class RunningState {
         mProcessItems.clear();
         mAllProcessItems.clear();
         mUsers.clear();
+        mLastPssPids = null;
+        mLastPss = null;
+        synchronized (mLock) {
+            mPssHistory.clear();
+        }
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -860,11 +990,23 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
+    private static long pssDistance(long[] pss, long[] lastPss) {
+        if (lastPss == null || lastPss.length != pss.length) {
+            return Long.MAX_VALUE;
+        }
+        long distance = 0;
+        for (int i=0; i<pss.length; i++) {
+            distance += Math.abs(pss[i] - lastPss[i]);
+        }
+        return distance;
+    }
+
     private boolean update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
 
         mSequence++;
-        
+        mChangedItems = 0;
+
         boolean changed = false;
 
         // Retrieve list of services, filtering out anything that definitely
@@ -902,7 +1044,12 @@ public class RunningState {
         mTmpAppProcesses.clear();
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            if (i >= mAppProcessInfoPool.size()) {
+                mAppProcessInfoPool.add(new AppProcessInfo());
+            }
+            AppProcessInfo ainfo = mAppProcessInfoPool.get(i);
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -1077,7 +1224,6 @@ public class RunningState {
         }
         
         // Look for services and their primary processes that no longer exist...
-        ArrayList<Integer> uidToDelete = null;
         for (int i=0; i<mServiceProcessesByName.size(); i++) {
             HashMap<String, ProcessItem> procs = mServiceProcessesByName.valueAt(i);
             Iterator<ProcessItem> pit = procs.values().iterator();
@@ -1093,12 +1239,6 @@ public class RunningState {
                 } else {
                     changed = true;
                     pit.remove();
-                    if (procs.size() == 0) {
-                        if (uidToDelete == null) {
-                            uidToDelete = new ArrayList<Integer>();
-                        }
-                        uidToDelete.add(mServiceProcessesByName.keyAt(i));
-                    }
                     if (pi.mPid != 0) {
                         mServiceProcessesByPid.remove(pi.mPid);
                     }
@@ -1113,18 +1253,16 @@ public class RunningState {
                     }
                 }
             }
-        }
-        
-        if (uidToDelete != null) {
-            for (int i = 0; i < uidToDelete.size(); i++) {
-                int uid = uidToDelete.get(i);
-                mServiceProcessesByName.remove(uid);
+            if (procs.size() == 0) {
+                mServiceProcessesByName.removeAt(i);
+                i--;
             }
         }
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
                     pi.mIsSystem = false;
@@ -1150,8 +1288,10 @@ public class RunningState {
             
             Collections.sort(sortedProcesses, mServiceProcessComparator);
             
-            ArrayList<BaseItem> newItems = new ArrayList<BaseItem>();
-            ArrayList<MergedItem> newMergedItems = new ArrayList<MergedItem>();
+            final ArrayList<BaseItem> newItems = mTmpItems;
+            final ArrayList<MergedItem> newMergedItems = mTmpMergedItems;
+            newItems.clear();
+            newMergedItems.clear();
             mProcessItems.clear();
             for (int i=0; i<sortedProcesses.size(); i++) {
                 ProcessItem pi = sortedProcesses.get(i);
@@ -1186,20 +1326,26 @@ public class RunningState {
                 
                 if (!haveAllMerged || mergedItem == null
                         || mergedItem.mServices.size() != pi.mServices.size()) {
-                    // Whoops, we need to build a new MergedItem!
-                    mergedItem = new MergedItem(pi.mUserId);
-                    for (ServiceItem si : pi.mServices.values()) {
-                        mergedItem.mServices.add(si);
-                        si.mMergedItem = mergedItem;
-                    }
-                    mergedItem.mProcess = pi;
-                    mergedItem.mOtherProcesses.clear();
-                    for (int mpi=firstProc; mpi<(mProcessItems.size()-1); mpi++) {
-                        mergedItem.mOtherProcesses.add(mProcessItems.get(mpi));
+                    // Whoops, we need to build a new MergedItem!  The one of this
+                    // process is kept when it still holds the same contents.  A
+                    // published item is never refilled, the UI reads it unlocked.
+                    if (mergedItem == null || !hasMergedContents(mergedItem, pi, firstProc)) {
+                        mergedItem = new MergedItem(pi.mUserId);
+                        for (ServiceItem si : pi.mServices.values()) {
+                            mergedItem.mServices.add(si);
+                            si.mMergedItem = mergedItem;
+                        }
+                        mergedItem.mProcess = pi;
+                        for (int mpi=firstProc; mpi<(mProcessItems.size()-1); mpi++) {
+                            mergedItem.mOtherProcesses.add(mProcessItems.get(mpi));
+                        }
+                        noteItemChanged(mergedItem);
                     }
                 }
                 
-                mergedItem.update(context, false);
+                if (mergedItem.update(context, false)) {
+                    noteItemChanged(mergedItem);
+                }
                 if (mergedItem.mUserId != mMyUserId) {
                     addOtherUserItem(context, newMergedItems, mOtherUserMergedItems, mergedItem);
                 } else {
@@ -1217,7 +1363,9 @@ public class RunningState {
                         proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                     }
-                    proc.mMergedItem.update(context, false);
+                    if (proc.mMergedItem.update(context, false)) {
+                        noteItemChanged(proc.mMergedItem);
+                    }
                     if (proc.mMergedItem.mUserId != mMyUserId) {
                         addOtherUserItem(context, newMergedItems, mOtherUserMergedItems,
                                 proc.mMergedItem);
@@ -1234,13 +1382,16 @@ public class RunningState {
             for (int i=0; i<NU; i++) {
                 MergedItem user = mOtherUserMergedItems.valueAt(i);
                 if (user.mCurSeq == mSequence) {
-                    user.update(context, false);
+                    if (user.update(context, false)) {
+                        noteItemChanged(user);
+                    }
                 }
             }
 
             synchronized (mLock) {
-                mItems = newItems;
-                mMergedItems = newMergedItems;
+                copyInto(mItems, newItems);
+                copyInto(mMergedItems, newMergedItems);
+                mItemsGeneration++;
             }
         }
         
@@ -1277,17 +1428,47 @@ public class RunningState {
         long backgroundProcessMemory = 0;
         long foregroundProcessMemory = 0;
         long serviceProcessMemory = 0;
-        ArrayList<MergedItem> newBackgroundItems = null;
-        ArrayList<MergedItem> newUserBackgroundItems = null;
+        final ArrayList<MergedItem> newBackgroundItems = mTmpBackgroundItems;
+        newBackgroundItems.clear();
+        boolean backgroundChanged = false;
         boolean diffUsers = false;
+        boolean pssChanged = false;
         try {
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            int[] pids = mSparePids;
+            if (pids == null || pids.length != numProc) {
+                pids = new int[numProc];
+            }
             for (int i=0; i<numProc; i++) {
                 pids[i] = mAllProcessItems.get(i).mPid;
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
+            long[] pss;
+            final long now = SystemClock.uptimeMillis();
+            if (mLastPss != null && (now - mLastPssTime) < MAX_PSS_AGE
+                    && Arrays.equals(pids, mLastPssPids)) {
+                // Same processes as last time, their memory use is recent enough.
+                pss = mLastPss;
+                mSparePids = pids;
+                synchronized (mLock) {
+                    mUpdateStats.pssQueriesSkipped++;
+                }
+            } else {
+                pss = ActivityManagerNative.getDefault()
+                        .getProcessPss(pids);
+                pssChanged = !Arrays.equals(pids, mLastPssPids)
+                        || pssDistance(pss, mLastPss) >= PSS_CHANGE_THRESHOLD;
+                mSparePids = mLastPssPids;
+                mLastPssPids = pids;
+                mLastPss = pss;
+                mLastPssTime = now;
+                synchronized (mLock) {
+                    mUpdateStats.pssQueries++;
+                    mPssHistory.startPass();
+                    for (int i=0; i<numProc; i++) {
+                        mPssHistory.addSample(pids[i], pss[i]);
+                    }
+                }
+            }
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
@@ -1297,30 +1478,20 @@ public class RunningState {
                 } else if (proc.mRunningProcessInfo.importance >=
                         ActivityManager.RunningAppProcessInfo.IMPORTANCE_BACKGROUND) {
                     backgroundProcessMemory += proc.mSize;
-                    MergedItem mergedItem;
-                    if (newBackgroundItems != null) {
+                    MergedItem mergedItem = proc.mMergedItem;
+                    if (mergedItem == null || mergedItem.mProcess != proc) {
                         mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
-                        diffUsers |= mergedItem.mUserId != mMyUserId;
-                        newBackgroundItems.add(mergedItem);
-                    } else {
-                        if (bgIndex >= mBackgroundItems.size()
-                                || mBackgroundItems.get(bgIndex).mProcess != proc) {
-                            newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
-                            for (int bgi=0; bgi<bgIndex; bgi++) {
-                                mergedItem = mBackgroundItems.get(bgi);
-                                diffUsers |= mergedItem.mUserId != mMyUserId;
-                                newBackgroundItems.add(mergedItem);
-                            }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
-                            diffUsers |= mergedItem.mUserId != mMyUserId;
-                            newBackgroundItems.add(mergedItem);
-                        } else {
-                            mergedItem = mBackgroundItems.get(bgIndex);
-                        }
+                        mergedItem.mProcess = proc;
+                    }
+                    if (bgIndex >= mBackgroundItems.size()
+                            || mBackgroundItems.get(bgIndex) != mergedItem) {
+                        backgroundChanged = true;
+                    }
+                    diffUsers |= mergedItem.mUserId != mMyUserId;
+                    newBackgroundItems.add(mergedItem);
+                    if (mergedItem.update(context, true)) {
+                        noteItemChanged(mergedItem);
                     }
-                    mergedItem.update(context, true);
                     mergedItem.updateSize(context);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
@@ -1328,50 +1499,41 @@ public class RunningState {
                     foregroundProcessMemory += proc.mSize;
                 }
             }
-        } catch (RemoteException e) {
-        }
-        
-        if (newBackgroundItems == null) {
             // One or more at the bottom may no longer exist.
-            if (mBackgroundItems.size() > numBackgroundProcesses) {
-                newBackgroundItems = new ArrayList<MergedItem>(numBackgroundProcesses);
-                for (int bgi=0; bgi<numBackgroundProcesses; bgi++) {
-                    MergedItem mergedItem = mBackgroundItems.get(bgi);
-                    diffUsers |= mergedItem.mUserId != mMyUserId;
-                    newBackgroundItems.add(mergedItem);
-                }
+            if (bgIndex != mBackgroundItems.size()) {
+                backgroundChanged = true;
             }
+        } catch (RemoteException e) {
+            // Keep showing the current background items.
+            backgroundChanged = false;
         }
 
-        if (newBackgroundItems != null) {
-            // The background items have changed; we need to re-build the
-            // per-user items.
-            if (!diffUsers) {
-                // Easy: there are no other users, we can just use the same array.
-                newUserBackgroundItems = newBackgroundItems;
-            } else {
-                // We now need to re-build the per-user list so that background
-                // items for users are collapsed together.
-                newUserBackgroundItems = new ArrayList<MergedItem>();
-                final int NB = newBackgroundItems.size();
-                for (int i=0; i<NB; i++) {
-                    MergedItem mergedItem = newBackgroundItems.get(i);
-                    if (mergedItem.mUserId != mMyUserId) {
-                        addOtherUserItem(context, newUserBackgroundItems,
-                                mOtherUserBackgroundItems, mergedItem);
-                    } else {
-                        newUserBackgroundItems.add(mergedItem);
-                    }
+        ArrayList<MergedItem> newUserBackgroundItems = newBackgroundItems;
+        if (backgroundChanged && diffUsers) {
+            // We now need to re-build the per-user list so that background
+            // items for users are collapsed together.
+            newUserBackgroundItems = mTmpUserBackgroundItems;
+            newUserBackgroundItems.clear();
+            final int NB = newBackgroundItems.size();
+            for (int i=0; i<NB; i++) {
+                MergedItem mergedItem = newBackgroundItems.get(i);
+                if (mergedItem.mUserId != mMyUserId) {
+                    addOtherUserItem(context, newUserBackgroundItems,
+                            mOtherUserBackgroundItems, mergedItem);
+                } else {
+                    newUserBackgroundItems.add(mergedItem);
                 }
-                // And user aggregated merged items need to be
-                // updated now that they have all of their children.
-                final int NU = mOtherUserBackgroundItems.size();
-                for (int i=0; i<NU; i++) {
-                    MergedItem user = mOtherUserBackgroundItems.valueAt(i);
-                    if (user.mCurSeq == mSequence) {
-                        user.update(context, true);
-                        user.updateSize(context);
+            }
+            // And user aggregated merged items need to be
+            // updated now that they have all of their children.
+            final int NU = mOtherUserBackgroundItems.size();
+            for (int i=0; i<NU; i++) {
+                MergedItem user = mOtherUserBackgroundItems.valueAt(i);
+                if (user.mCurSeq == mSequence) {
+                    if (user.update(context, true)) {
+                        noteItemChanged(user);
                     }
+                    user.updateSize(context);
                 }
             }
         }
@@ -1387,21 +1549,64 @@ public class RunningState {
             mBackgroundProcessMemory = backgroundProcessMemory;
             mForegroundProcessMemory = foregroundProcessMemory;
             mServiceProcessMemory = serviceProcessMemory;
-            if (newBackgroundItems != null) {
-                mBackgroundItems = newBackgroundItems;
-                mUserBackgroundItems = newUserBackgroundItems;
+            if (backgroundChanged) {
+                copyInto(mBackgroundItems, newBackgroundItems);
+                copyInto(mUserBackgroundItems, newUserBackgroundItems);
+                mItemsGeneration++;
                 if (mWatchingBackgroundItems) {
                     changed = true;
                 }
             }
+            mUpdateStats.lastChangedItems = mChangedItems;
             if (!mHaveData) {
                 mHaveData = true;
                 mLock.notifyAll();
             }
         }
-        
+
+        mLastUpdateQuiet = !changed && !backgroundChanged && !pssChanged;
         return changed;
     }
+
+    /**
+     * @return whether the merged item already holds the services of the process
+     * and the processes added to mProcessItems from firstProc, in the same order
+     */
+    private boolean hasMergedContents(MergedItem mergedItem, ProcessItem pi, int firstProc) {
+        final int numOther = mProcessItems.size() - 1 - firstProc;
+        if (mergedItem.mProcess != pi || mergedItem.mServices.size() != pi.mServices.size()
+                || mergedItem.mOtherProcesses.size() != numOther) {
+            return false;
+        }
+        int i = 0;
+        for (ServiceItem si : pi.mServices.values()) {
+            if (mergedItem.mServices.get(i++) != si) {
+                return false;
+            }
+        }
+        for (i=0; i<numOther; i++) {
+            if (mergedItem.mOtherProcesses.get(i) != mProcessItems.get(firstProc + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void noteItemChanged(BaseItem item) {
+        if (item.mChangedSeq != mSequence) {
+            item.mChangedSeq = mSequence;
+            mChangedItems++;
+        }
+    }
+
+    private static <T> void copyInto(ArrayList<T> dest, ArrayList<? extends T> src) {
+        dest.clear();
+        final int N = src.size();
+        dest.ensureCapacity(N);
+        for (int i=0; i<N; i++) {
+            dest.add(src.get(i));
+        }
+    }
     
     ArrayList<BaseItem> getCurrentItems() {
         synchronized (mLock) {
@@ -1415,12 +1620,27 @@ public class RunningState {
         }
     }
 
+    /**
+     * The returned list is updated in place, synchronize on mLock while reading it.
+     */
     ArrayList<MergedItem> getCurrentMergedItems() {
         synchronized (mLock) {
             return mMergedItems;
         }
     }
 
+    /**
+     * @return a number that changes each time the current items are updated
+     */
+    int getItemsGeneration() {
+        synchronized (mLock) {
+            return mItemsGeneration;
+        }
+    }
+
+    /**
+     * The returned list is updated in place, synchronize on mLock while reading it.
+     */
     ArrayList<MergedItem> getCurrentBackgroundItems() {
         synchronized (mLock) {
             return mUserBackgroundItems;
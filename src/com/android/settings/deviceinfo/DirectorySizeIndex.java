@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persisted index of the directories measured by {@link StorageMeasurement}, so that measuring
+ * again only lists the directories that changed.
+ *
+ * For each directory the index keeps its modification time, the disk usage of its files and
+ * the names of its subdirectories.  A directory whose modification time is unchanged still has
+ * the same children, so only its subdirectories are checked.  Files growing in place don't
+ * change the modification time of their directory, such changes are only seen once something
+ * is added to or removed from the directory.
+ */
+class DirectorySizeIndex {
+    private static final String TAG = "DirectorySizeIndex";
+
+    private static final String FILE_PREFIX = "directory_sizes_";
+
+    // Bump when the file format changes, older files are then ignored.
+    private static final int VERSION = 1;
+
+    private static class Entry {
+        // Seconds, as from stat()
+        long mtime;
+        // Disk usage of the directory itself and of its files
+        long filesSize;
+        String[] subdirs;
+        // Listed in the same second as its last modification, later changes could go unseen
+        boolean unstable;
+        // Pass that last visited the entry, only the visited entries are written back
+        int lastPass;
+    }
+
+    private final AtomicFile mFile;
+
+    // Guarded by itself
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mLoaded;
+    private int mPass;
+
+    /**
+     * @param name name of the storage the index is for, each storage has its own index
+     */
+    DirectorySizeIndex(Context context, String name) {
+        mFile = new AtomicFile(new File(context.getCacheDir(),
+                FILE_PREFIX + name.replace('/', '_')));
+    }
+
+    /**
+     * Start a new measurement, reading the index first if needed.  The entries not visited
+     * until the next {@link #save} are dropped then.
+     */
+    void startPass() {
+        synchronized (mEntries) {
+            if (!mLoaded) {
+                read();
+                mLoaded = true;
+            }
+            mPass++;
+        }
+    }
+
+    /**
+     * @return the disk usage of the directory and everything below it, in bytes, or -1 if it
+     *         or any directory below it could not be listed
+     */
+    long getDirectorySize(File dir) {
+        final String path = dir.getPath();
+        final StructStat stat;
+        try {
+            stat = Os.lstat(path);
+        } catch (ErrnoException e) {
+            // Nothing to count if it is gone
+            return e.errno == OsConstants.ENOENT ? 0 : -1;
+        }
+        if (!OsConstants.S_ISDIR(stat.st_mode)) {
+            return -1;
+        }
+
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(path);
+        }
+        if (entry == null || entry.unstable || entry.mtime != stat.st_mtime) {
+            entry = listDirectory(dir, stat);
+            if (entry == null) {
+                return -1;
+            }
+        }
+        synchronized (mEntries) {
+            entry.lastPass = mPass;
+            mEntries.put(path, entry);
+        }
+
+        long size = entry.filesSize;
+        for (String name : entry.subdirs) {
+            final long subdirSize = getDirectorySize(new File(dir, name));
+            if (subdirSize < 0) {
+                // Left to the caller's fallback, for the whole tree
+                return -1;
+            }
+            size += subdirSize;
+        }
+        return size;
+    }
+
+    private static Entry listDirectory(File dir, StructStat stat) {
+        final String[] names = dir.list();
+        if (names == null) {
+            return null;
+        }
+        final Entry entry = new Entry();
+        entry.mtime = stat.st_mtime;
+        entry.unstable = stat.st_mtime >= System.currentTimeMillis() / 1000 - 1;
+        entry.filesSize = stat.st_blocks * 512;
+        final ArrayList<String> subdirs = new ArrayList<String>();
+        for (String name : names) {
+            try {
+                final StructStat child = Os.lstat(new File(dir, name).getPath());
+                if (OsConstants.S_ISDIR(child.st_mode)) {
+                    subdirs.add(name);
+                } else {
+                    entry.filesSize += child.st_blocks * 512;
+                }
+            } catch (ErrnoException e) {
+                // Removed while listing
+            }
+        }
+        entry.subdirs = subdirs.toArray(new String[subdirs.size()]);
+        return entry;
+    }
+
+    /**
+     * Write the entries visited since the last {@link #startPass}.
+     */
+    void save() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            synchronized (mEntries) {
+                final ArrayList<String> stale = new ArrayList<String>();
+                int count = 0;
+                for (Entry entry : mEntries.values()) {
+                    if (entry.lastPass == mPass) {
+                        count++;
+                    }
+                }
+                out.writeInt(count);
+                for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                    final Entry entry = e.getValue();
+                    if (entry.lastPass != mPass) {
+                        stale.add(e.getKey());
+                        continue;
+                    }
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.mtime);
+                    out.writeLong(entry.filesSize);
+                    out.writeBoolean(entry.unstable);
+                    out.writeInt(entry.subdirs.length);
+                    for (String name : entry.subdirs) {
+                        out.writeUTF(name);
+                    }
+                }
+                for (int i=0; i<stale.size(); i++) {
+                    mEntries.remove(stale.get(i));
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mFile.getBaseFile(), e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private void read() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String path = in.readUTF();
+                final Entry entry = new Entry();
+                entry.mtime = in.readLong();
+                entry.filesSize = in.readLong();
+                entry.unstable = in.readBoolean();
+                entry.subdirs = new String[in.readInt()];
+                for (int j=0; j<entry.subdirs.length; j++) {
+                    entry.subdirs[j] = in.readUTF();
+                }
+                mEntries.put(path, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // No index yet
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + mFile.getBaseFile(), e);
+            mEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
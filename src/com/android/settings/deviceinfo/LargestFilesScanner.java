@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * Walks the whole tree of misc files, the files of external storage not counted under a media
+ * type, and keeps the largest files and directories found anywhere in it.  Only the largest
+ * {@link #MAX_RESULTS} are ever kept, so the memory used does not depend on the size of the
+ * tree.  The results found so far are published while walking, largest first.
+ */
+class LargestFilesScanner extends AsyncTask<File, ArrayList<FileInfo>, ArrayList<FileInfo>> {
+    static final int MAX_RESULTS = 100;
+
+    private static final long PUBLISH_INTERVAL_MS = 500;
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the largest files found so far, largest first.
+         */
+        void onLargestFilesFound(ArrayList<FileInfo> files, boolean finished);
+    }
+
+    private final Listener mListener;
+
+    // Smallest first, so the head is the one to drop when a larger file is found
+    private final PriorityQueue<FileInfo> mLargest = new PriorityQueue<FileInfo>(MAX_RESULTS,
+            Collections.reverseOrder());
+    private long mNextId;
+    private boolean mChanged;
+    private long mLastPublish;
+
+    LargestFilesScanner(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    protected ArrayList<FileInfo> doInBackground(File... params) {
+        mLastPublish = SystemClock.uptimeMillis();
+        scan(params[0], true);
+        return getLargest();
+    }
+
+    @Override
+    protected void onProgressUpdate(ArrayList<FileInfo>... values) {
+        mListener.onLargestFilesFound(values[0], false);
+    }
+
+    @Override
+    protected void onPostExecute(ArrayList<FileInfo> result) {
+        mListener.onLargestFilesFound(result, true);
+    }
+
+    /**
+     * @return the disk usage of the directory and everything below it
+     */
+    private long scan(File dir, boolean top) {
+        final String[] names = dir.list();
+        if (names == null) {
+            return 0;
+        }
+        long total = 0;
+        for (String name : names) {
+            if (isCancelled()) {
+                break;
+            }
+            if (top && StorageMeasurement.isMeasuredMediaType(name)) {
+                continue;
+            }
+            final File file = new File(dir, name);
+            final StructStat stat;
+            try {
+                stat = Os.lstat(file.getPath());
+            } catch (ErrnoException e) {
+                continue;
+            }
+            long size = stat.st_blocks * 512;
+            if (OsConstants.S_ISDIR(stat.st_mode)) {
+                size += scan(file, false);
+            } else if (!OsConstants.S_ISREG(stat.st_mode)) {
+                // Symlinks and such: not listed
+                continue;
+            }
+            offer(file, size);
+            total += size;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (mChanged && now - mLastPublish >= PUBLISH_INTERVAL_MS) {
+            mLastPublish = now;
+            publishProgress(getLargest());
+        }
+        return total;
+    }
+
+    private void offer(File file, long size) {
+        if (mLargest.size() >= MAX_RESULTS) {
+            if (size <= mLargest.peek().mSize) {
+                return;
+            }
+            mLargest.poll();
+        }
+        mLargest.add(new FileInfo(file.getAbsolutePath(), size, mNextId++));
+        mChanged = true;
+    }
+
+    private ArrayList<FileInfo> getLargest() {
+        final ArrayList<FileInfo> largest = new ArrayList<FileInfo>(mLargest);
+        Collections.sort(largest);
+        mChanged = false;
+        return largest;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Deletes a batch of misc files and directories in the background, reporting the bytes freed
+ * as it goes.  When cancelled it stops after the file being deleted, the entries deleted up to
+ * then are still reported.
+ */
+class MiscFilesDeleter extends AsyncTask<FileInfo, Long, ArrayList<FileInfo>> {
+    private static final String TAG = "MiscFilesDeleter";
+
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the bytes freed so far.
+         */
+        void onDeleteProgress(long freedBytes);
+
+        /**
+         * Called on the main thread once done or cancelled.
+         *
+         * @param deleted the entries deleted completely
+         */
+        void onDeleteFinished(ArrayList<FileInfo> deleted, long freedBytes);
+    }
+
+    private Listener mListener;
+
+    private long mFreedBytes;
+    private long mLastProgress;
+
+    MiscFilesDeleter(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Hand the callbacks to another listener, e.g. the activity recreated after a configuration
+     * change.  Must be called on the main thread.
+     */
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    protected ArrayList<FileInfo> doInBackground(FileInfo... params) {
+        final ArrayList<FileInfo> deleted = new ArrayList<FileInfo>();
+        for (FileInfo info : params) {
+            if (isCancelled()) {
+                break;
+            }
+            if (StorageMeasurement.LOGV) {
+                Log.i(TAG, "deleting: " + info);
+            }
+            if (delete(new File(info.mFileName))) {
+                deleted.add(info);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    protected void onProgressUpdate(Long... values) {
+        mListener.onDeleteProgress(values[0]);
+    }
+
+    @Override
+    protected void onPostExecute(ArrayList<FileInfo> result) {
+        mListener.onDeleteFinished(result, mFreedBytes);
+    }
+
+    @Override
+    protected void onCancelled(ArrayList<FileInfo> result) {
+        mListener.onDeleteFinished(result != null ? result : new ArrayList<FileInfo>(),
+                mFreedBytes);
+    }
+
+    /**
+     * Deletes the file, or the directory and everything below it.
+     *
+     * @return whether everything was deleted
+     */
+    private boolean delete(File file) {
+        final StructStat stat;
+        try {
+            stat = Os.lstat(file.getPath());
+        } catch (ErrnoException e) {
+            // Already gone
+            return true;
+        }
+        if (OsConstants.S_ISDIR(stat.st_mode)) {
+            final String[] children = file.list();
+            if (children != null) {
+                for (String child : children) {
+                    if (isCancelled() || !delete(new File(file, child))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        if (!file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+            return false;
+        }
+
+        mFreedBytes += stat.st_blocks * 512;
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastProgress >= PROGRESS_INTERVAL_MS) {
+            mLastProgress = now;
+            publishProgress(mFreedBytes);
+        }
+        return true;
+    }
+}
@@ -18,11 +18,13 @@ package com.android.settings.deviceinfo;
 
 import android.app.Activity;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.storage.StorageVolume;
 import android.text.format.Formatter;
-import android.util.Log;
 import android.util.SparseBooleanArray;
 import android.view.ActionMode;
 import android.view.LayoutInflater;
@@ -43,7 +45,7 @@ import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
 
 /**
  * This class handles the selection and removal of Misc files.
@@ -55,6 +57,36 @@ public class MiscFilesHandler extends ListActivity {
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
 
+    private LargestFilesScanner mScanner;
+    // Scan results are held back while items are being selected or deleted
+    private boolean mActionModeActive;
+    private ArrayList<FileInfo> mPendingFiles;
+    private HashSet<String> mDeletedPaths = new HashSet<String>();
+
+    // A deletion in progress is kept across configuration changes
+    private MiscFilesDeleter mDeleter;
+    private long mDeleteSize;
+    private long mFreedBytes;
+    private ProgressDialog mDeleteDialog;
+
+    /**
+     * Used to propagate state through configuration changes (e.g. screen rotation)
+     */
+    private static class NonConfigurationInstanceState {
+        final MiscFilesDeleter deleter;
+        final long deleteSize;
+        final long freedBytes;
+        final HashSet<String> deletedPaths;
+
+        NonConfigurationInstanceState(MiscFilesDeleter _deleter, long _deleteSize,
+                long _freedBytes, HashSet<String> _deletedPaths) {
+            deleter = _deleter;
+            deleteSize = _deleteSize;
+            freedBytes = _freedBytes;
+            deletedPaths = _deletedPaths;
+        }
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -70,7 +102,159 @@ public class MiscFilesHandler extends ListActivity {
         lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         lv.setMultiChoiceModeListener(new ModeCallback(this));
         setListAdapter(mAdapter);
-    } 
+
+        final Object lastInstance = getLastNonConfigurationInstance();
+        if (lastInstance instanceof NonConfigurationInstanceState) {
+            final NonConfigurationInstanceState retained =
+                    (NonConfigurationInstanceState) lastInstance;
+            mDeletedPaths = retained.deletedPaths;
+            if (retained.deleter != null) {
+                mDeleter = retained.deleter;
+                mDeleteSize = retained.deleteSize;
+                mFreedBytes = retained.freedBytes;
+                mDeleter.setListener(new DeleteListener());
+                showDeleteDialog();
+            }
+        }
+
+        final File miscDir = mAdapter.getMiscDir();
+        if (miscDir != null) {
+            mScanner = new LargestFilesScanner(new LargestFilesScanner.Listener() {
+                @Override
+                public void onLargestFilesFound(ArrayList<FileInfo> files, boolean finished) {
+                    if (mActionModeActive || mDeleter != null) {
+                        mPendingFiles = files;
+                    } else {
+                        showFiles(files);
+                    }
+                }
+            });
+            mScanner.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, miscDir);
+        }
+    }
+
+    /**
+     * Hand a deletion in progress off to the next instance.  Only called when changing
+     * configuration (e.g. rotation), the new instance shows its progress again.
+     */
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return new NonConfigurationInstanceState(mDeleter, mDeleteSize, mFreedBytes,
+                mDeletedPaths);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mScanner != null) {
+            mScanner.cancel(false);
+        }
+        // Once finishing nothing would show its progress or let it be cancelled anymore,
+        // otherwise the next instance takes it over
+        if (mDeleter != null && isFinishing()) {
+            mDeleter.cancel(false);
+        }
+        if (mDeleteDialog != null) {
+            mDeleteDialog.dismiss();
+            mDeleteDialog = null;
+        }
+    }
+
+    private void startDelete(ArrayList<FileInfo> toDelete) {
+        long totalSize = 0;
+        for (int i = 0; i < toDelete.size(); i++) {
+            totalSize += toDelete.get(i).mSize;
+        }
+        mDeleteSize = totalSize;
+        mFreedBytes = 0;
+
+        mDeleter = new MiscFilesDeleter(new DeleteListener());
+        showDeleteDialog();
+        mDeleter.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                toDelete.toArray(new FileInfo[toDelete.size()]));
+    }
+
+    private void showDeleteDialog() {
+        mDeleteDialog = new ProgressDialog(this);
+        mDeleteDialog.setMessage(getString(R.string.misc_files_deleting));
+        mDeleteDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mDeleteDialog.setProgressNumberFormat(null);
+        mDeleteDialog.setMax(100);
+        mDeleteDialog.setCancelable(false);
+        mDeleteDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mDeleter != null) {
+                            mDeleter.cancel(false);
+                        }
+                    }
+                });
+        mDeleteDialog.show();
+        updateDeleteProgress();
+    }
+
+    private void updateDeleteProgress() {
+        if (mDeleteDialog != null && mDeleteSize > 0) {
+            mDeleteDialog.setProgress((int) Math.min(100, mFreedBytes * 100 / mDeleteSize));
+        }
+    }
+
+    private class DeleteListener implements MiscFilesDeleter.Listener {
+        @Override
+        public void onDeleteProgress(long freedBytes) {
+            mFreedBytes = freedBytes;
+            updateDeleteProgress();
+        }
+
+        @Override
+        public void onDeleteFinished(ArrayList<FileInfo> deleted, long freedBytes) {
+            mDeleter = null;
+            if (!deleted.isEmpty()) {
+                mAdapter.getMeasurement().invalidateMisc();
+            }
+            if (isDestroyed()) {
+                return;
+            }
+            if (mDeleteDialog != null) {
+                mDeleteDialog.dismiss();
+                mDeleteDialog = null;
+            }
+            for (int i = 0; i < deleted.size(); i++) {
+                mDeletedPaths.add(deleted.get(i).mFileName);
+            }
+            // The list may hold other FileInfo instances for the same files, e.g. after a
+            // configuration change, so match them by path
+            mAdapter.removeDeleted();
+            if (mPendingFiles != null && !mActionModeActive) {
+                showFiles(mPendingFiles);
+                mPendingFiles = null;
+            } else {
+                mAdapter.notifyDataSetChanged();
+            }
+        }
+    }
+
+    private void showFiles(ArrayList<FileInfo> files) {
+        // The scan may have found files deleted since
+        if (!mDeletedPaths.isEmpty()) {
+            for (int i = files.size() - 1; i >= 0; i--) {
+                if (isDeleted(files.get(i).mFileName)) {
+                    files.remove(i);
+                }
+            }
+        }
+        mAdapter.setData(files);
+    }
+
+    private boolean isDeleted(String path) {
+        for (String deleted : mDeletedPaths) {
+            if (path.equals(deleted) || path.startsWith(deleted + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     private class ModeCallback implements ListView.MultiChoiceModeListener {
         private int mDataCount;
@@ -82,6 +266,8 @@ public class MiscFilesHandler extends ListActivity {
         }
 
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mActionModeActive = true;
+            mDataCount = mAdapter.getCount();
             final MenuInflater inflater = getMenuInflater();
             inflater.inflate(R.menu.misc_files_menu, menu);
             return true;
@@ -103,27 +289,15 @@ public class MiscFilesHandler extends ListActivity {
                             "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
                 }
                 if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
+                    ArrayList<FileInfo> toDelete = new ArrayList<FileInfo>();
                     for (int i = 0; i < mDataCount; i++) {
                         if (!checkedItems.get(i)) {
                             //item not selected
                             continue;
                         }
-                        if (StorageMeasurement.LOGV) {
-                            Log.i(TAG, "deleting: " + mAdapter.getItem(i));
-                        }
-                        // delete the file
-                        File file = new File(mAdapter.getItem(i).mFileName);
-                        if (file.isDirectory()) {
-                            deleteDir(file);
-                        } else {
-                            file.delete();                            
-                        }
-                        toRemove.add(mAdapter.getItem(i));
+                        toDelete.add(mAdapter.getItem(i));
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
+                    startDelete(toDelete);
                 }
                 mode.finish();
                 break;
@@ -140,25 +314,13 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        // Deletes all files and subdirectories under given dir.
-        // Returns true if all deletions were successful.
-        // If a deletion fails, the method stops attempting to delete and returns false.
-        private boolean deleteDir(File dir) {
-            String[] children = dir.list();
-            if (children != null) {
-                for (int i=0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
-                }
-            }
-            // The directory is now empty so delete it
-            return dir.delete();
-        }
-
         public void onDestroyActionMode(ActionMode mode) {
-            // This block intentionally left blank
+            mActionModeActive = false;
+            if (mPendingFiles != null && mDeleter == null) {
+                showFiles(mPendingFiles);
+                mPendingFiles = null;
+                mDataCount = mAdapter.getCount();
+            }
         }
 
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
@@ -188,14 +350,16 @@ public class MiscFilesHandler extends ListActivity {
         private ArrayList<StorageMeasurement.FileInfo> mData = null;
         private long mDataSize = 0;
         private Context mContext;
+        private File mMiscDir;
+        private StorageMeasurement mMeasurement;
 
         public MemoryMearurementAdapter(Activity activity) {
             mContext = activity;
             final StorageVolume storageVolume = activity.getIntent().getParcelableExtra(
                     StorageVolume.EXTRA_STORAGE_VOLUME);
-            StorageMeasurement mMeasurement = StorageMeasurement.getInstance(
-                    activity, storageVolume);
+            mMeasurement = StorageMeasurement.getInstance(activity, storageVolume);
             if (mMeasurement == null) return;
+            mMiscDir = mMeasurement.mMiscDir;
             mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
             if (mData != null) {
                 for (StorageMeasurement.FileInfo info : mData) {
@@ -204,6 +368,25 @@ public class MiscFilesHandler extends ListActivity {
             }
         }
 
+        /**
+         * @return the directory holding the misc files, or null if they were not measured
+         */
+        public File getMiscDir() {
+            return mMiscDir;
+        }
+
+        public StorageMeasurement getMeasurement() {
+            return mMeasurement;
+        }
+
+        /**
+         * Show other files.  The total size stays the one of all misc files.
+         */
+        public void setData(ArrayList<StorageMeasurement.FileInfo> data) {
+            mData = data;
+            notifyDataSetChanged();
+        }
+
         @Override
         public int getCount() {
             return (mData == null) ? 0 : mData.size();
@@ -225,13 +408,19 @@ public class MiscFilesHandler extends ListActivity {
             return mData.get(position).mId;
         }
 
-        public void removeAll(List<Object> objs) {
+        /**
+         * Remove the files that were deleted, or that were below a deleted directory.
+         */
+        public void removeDeleted() {
             if (mData == null) {
                 return;
             }
-            for (Object o : objs) {
-                mData.remove(o);
-                mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
+            for (int i = mData.size() - 1; i >= 0; i--) {
+                final StorageMeasurement.FileInfo info = mData.get(i);
+                if (isDeleted(info.mFileName)) {
+                    mData.remove(i);
+                    mDataSize -= info.mSize;
+                }
             }
         }
 
@@ -33,6 +33,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageVolume;
@@ -50,6 +51,12 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -77,9 +84,23 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    /**
+     * Whether a top level directory of external storage is measured as a media type rather
+     * than as misc files.
+     */
+    static boolean isMeasuredMediaType(String name) {
+        return sMeasureMediaTypes.contains(name);
+    }
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
+    /** Number of directory walks running at the same time. */
+    private static final int MEASUREMENT_WORKER_COUNT = 3;
+    private static final int MEASUREMENT_WORKER_KEEP_ALIVE_SECONDS = 3;
+
+    private static ExecutorService sMeasurementExecutor;
+
     /**
      * Obtain shared instance of {@link StorageMeasurement} for given physical
      * {@link StorageVolume}, or internal storage if {@code null}.
@@ -141,6 +162,25 @@ public class StorageMeasurement {
          * internal storage. Key is {@link UserHandle}.
          */
         public SparseLongArray usersSize = new SparseLongArray();
+
+        /**
+         * Whether everything is measured.  Details are also sent while measuring, the
+         * categories not measured yet are then missing or only partially counted.
+         */
+        public boolean complete;
+
+        MeasurementDetails copy() {
+            final MeasurementDetails copy = new MeasurementDetails();
+            copy.totalSize = totalSize;
+            copy.availSize = availSize;
+            copy.appsSize = appsSize;
+            copy.cacheSize = cacheSize;
+            copy.mediaSize = new HashMap<String, Long>(mediaSize);
+            copy.miscSize = miscSize;
+            copy.usersSize = usersSize.clone();
+            copy.complete = complete;
+            return copy;
+        }
     }
 
     public interface MeasurementReceiver {
@@ -158,15 +198,21 @@ public class StorageMeasurement {
 
     private final MeasurementHandler mHandler;
 
+    private final DirectorySizeIndex mSizeIndex;
+
     private long mTotalSize;
     private long mAvailSize;
 
-    List<FileInfo> mFileInfoForMisc;
+    volatile List<FileInfo> mFileInfoForMisc;
+    /** Directory holding the misc files, or null if they were not measured. */
+    volatile File mMiscDir;
 
     private StorageMeasurement(Context context, StorageVolume volume) {
         mVolume = volume;
         mIsInternal = volume == null;
         mIsPrimary = volume != null ? volume.isPrimary() : false;
+        mSizeIndex = new DirectorySizeIndex(context,
+                volume != null ? volume.getPath() : "internal");
 
         // Start the thread that will measure the disk usage.
         final HandlerThread handlerThread = new HandlerThread("MemoryMeasurement");
@@ -196,6 +242,14 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Only measure the misc files again, after some of them were deleted.  The space they
+     * took is counted as available.
+     */
+    public void invalidateMisc() {
+        mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE_MISC);
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -219,28 +273,30 @@ public class StorageMeasurement {
         private final boolean mIsInternal;
         private final MeasurementDetails mDetails;
         private final int mCurrentUser;
-        private final Message mFinished;
+        private final ExactMeasurement mMeasurement;
 
         private int mRemaining;
 
         public StatsObserver(boolean isInternal, MeasurementDetails details, int currentUser,
-                Message finished, int remaining) {
+                ExactMeasurement measurement, int remaining) {
             mIsInternal = isInternal;
             mDetails = details;
             mCurrentUser = currentUser;
-            mFinished = finished;
+            mMeasurement = measurement;
             mRemaining = remaining;
         }
 
         @Override
         public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
+            final boolean done;
             synchronized (mDetails) {
                 if (succeeded) {
                     addStatsLocked(stats);
                 }
-                if (--mRemaining == 0) {
-                    mFinished.sendToTarget();
-                }
+                done = --mRemaining == 0;
+            }
+            if (done) {
+                mMeasurement.partDone();
             }
         }
 
@@ -285,6 +341,8 @@ public class StorageMeasurement {
         public static final int MSG_DISCONNECT = 3;
         public static final int MSG_COMPLETED = 4;
         public static final int MSG_INVALIDATE = 5;
+        public static final int MSG_INVALIDATE_MISC = 6;
+        public static final int MSG_PARTIAL = 7;
 
         private Object mLock = new Object();
 
@@ -294,6 +352,10 @@ public class StorageMeasurement {
 
         private MeasurementDetails mCached;
 
+        // Whether an exact measurement is running, and whether it was invalidated since
+        private boolean mMeasuring;
+        private boolean mMeasuringInvalidated;
+
         private final WeakReference<Context> mContext;
 
         private final ServiceConnection mDefContainerConn = new ServiceConnection() {
@@ -347,7 +409,10 @@ public class StorageMeasurement {
                 case MSG_CONNECTED: {
                     IMediaContainerService imcs = (IMediaContainerService) msg.obj;
                     measureApproximateStorage(imcs);
-                    measureExactStorage(imcs);
+                    if (!mMeasuring) {
+                        mMeasuring = measureExactStorage(imcs);
+                        mMeasuringInvalidated = false;
+                    }
                     break;
                 }
                 case MSG_DISCONNECT: {
@@ -365,12 +430,42 @@ public class StorageMeasurement {
                     break;
                 }
                 case MSG_COMPLETED: {
+                    mMeasuring = false;
+                    if (mMeasuringInvalidated) {
+                        // Things changed while measuring, measure again
+                        measure();
+                        break;
+                    }
                     mCached = (MeasurementDetails) msg.obj;
                     sendExactUpdate(mCached);
                     break;
                 }
+                case MSG_PARTIAL: {
+                    if (mMeasuring) {
+                        sendExactUpdate((MeasurementDetails) msg.obj);
+                    }
+                    break;
+                }
                 case MSG_INVALIDATE: {
                     mCached = null;
+                    mMeasuringInvalidated = mMeasuring;
+                    break;
+                }
+                case MSG_INVALIDATE_MISC: {
+                    mMeasuringInvalidated = mMeasuring;
+                    if (mCached != null && mMiscDir != null) {
+                        // Still part of the pass of the cached measurement, so that the
+                        // index keeps the entries of the other categories
+                        final MeasurementDetails details = mCached.copy();
+                        details.miscSize = measureMisc(mBound ? mDefaultContainer : null,
+                                mMiscDir);
+                        mSizeIndex.save();
+                        if (mCached.miscSize > details.miscSize) {
+                            details.availSize += mCached.miscSize - details.miscSize;
+                        }
+                        mCached = details;
+                        sendExactUpdate(mCached);
+                    }
                     break;
                 }
             }
@@ -390,18 +485,27 @@ public class StorageMeasurement {
             sendInternalApproximateUpdate();
         }
 
-        private void measureExactStorage(IMediaContainerService imcs) {
+        /**
+         * Start measuring, the parts run in parallel and the details are sent as each of them
+         * finishes.
+         *
+         * @return whether a measurement was started
+         */
+        private boolean measureExactStorage(final IMediaContainerService imcs) {
             final Context context = mContext != null ? mContext.get() : null;
             if (context == null) {
-                return;
+                return false;
             }
 
             final MeasurementDetails details = new MeasurementDetails();
-            final Message finished = obtainMessage(MSG_COMPLETED, details);
+            final ExactMeasurement measurement = new ExactMeasurement(details,
+                    obtainMessage(MSG_COMPLETED, details));
 
             details.totalSize = mTotalSize;
             details.availSize = mAvailSize;
 
+            mSizeIndex.startPass();
+
             final UserManager userManager = (UserManager) context.getSystemService(
                     Context.USER_SERVICE);
             final List<UserInfo> users = userManager.getUsers();
@@ -414,10 +518,17 @@ public class StorageMeasurement {
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
             if (measureMedia) {
-                for (String type : sMeasureMediaTypes) {
+                for (final String type : sMeasureMediaTypes) {
                     final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    measurement.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            final long size = getDirectorySize(imcs, path);
+                            synchronized (details) {
+                                details.mediaSize.put(type, size);
+                            }
+                        }
+                    });
                 }
             }
 
@@ -425,41 +536,155 @@ public class StorageMeasurement {
             if (measureMedia) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                measurement.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long size = measureMisc(imcs, path);
+                        synchronized (details) {
+                            details.miscSize = size;
+                        }
+                    }
+                });
             }
 
             // Measure total emulated storage of all users; internal apps data
             // will be spliced in later
-            for (UserInfo user : users) {
+            for (final UserInfo user : users) {
                 final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                measurement.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long size = getDirectorySize(imcs,
+                                userEnv.getExternalStorageDirectory());
+                        synchronized (details) {
+                            addValue(details.usersSize, user.id, size);
+                        }
+                    }
+                });
             }
 
-            // Measure all apps for all users
+            // Measure all apps for all users, a batch for each user
             final PackageManager pm = context.getPackageManager();
             if (mIsInternal || mIsPrimary) {
                 final List<ApplicationInfo> apps = pm.getInstalledApplications(
                         PackageManager.GET_UNINSTALLED_PACKAGES
                         | PackageManager.GET_DISABLED_COMPONENTS);
 
-                final int count = users.size() * apps.size();
-                final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
+                if (!apps.isEmpty()) {
+                    for (UserInfo user : users) {
+                        measurement.startPart();
+                        final StatsObserver observer = new StatsObserver(
+                                mIsInternal, details, currentUser, measurement, apps.size());
+                        for (ApplicationInfo app : apps) {
+                            pm.getPackageSizeInfo(app.packageName, user.id, observer);
+                        }
+                    }
+                }
+            }
+
+            measurement.partDone();
+            return true;
+        }
+    }
+
+    private static synchronized ExecutorService getMeasurementExecutor() {
+        if (sMeasurementExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    MEASUREMENT_WORKER_COUNT, MEASUREMENT_WORKER_COUNT,
+                    MEASUREMENT_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread("MemoryMeasurement #" + mCount.getAndIncrement()) {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            };
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sMeasurementExecutor = executor;
+        }
+        return sMeasurementExecutor;
+    }
+
+    /**
+     * Parts of an exact measurement still running.  The details measured so far are sent
+     * after each part, and the complete details once all of them are done, both through
+     * the handler thread.
+     */
+    private class ExactMeasurement {
+        private final MeasurementDetails mDetails;
+        private final Message mFinished;
+
+        // Guarded by mDetails, starts at 1 for the part submitting the others
+        private int mRemaining = 1;
+
+        ExactMeasurement(MeasurementDetails details, Message finished) {
+            mDetails = details;
+            mFinished = finished;
+        }
+
+        /**
+         * Count a part running elsewhere, which calls {@link #partDone} when done.
+         */
+        void startPart() {
+            synchronized (mDetails) {
+                mRemaining++;
+            }
+        }
 
-                for (UserInfo user : users) {
-                    for (ApplicationInfo app : apps) {
-                        pm.getPackageSizeInfo(app.packageName, user.id, observer);
+        /**
+         * Run a part on the measurement threads.
+         */
+        void submit(final Runnable part) {
+            startPart();
+            getMeasurementExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        part.run();
+                    } finally {
+                        partDone();
                     }
                 }
+            });
+        }
 
-            } else {
-                finished.sendToTarget();
+        void partDone() {
+            synchronized (mDetails) {
+                if (--mRemaining > 0) {
+                    // Queued under the lock, so the partials stay in order and ahead of
+                    // MSG_COMPLETED
+                    mHandler.obtainMessage(MeasurementHandler.MSG_PARTIAL, mDetails.copy())
+                            .sendToTarget();
+                    return;
+                }
+                mDetails.complete = true;
             }
+            mSizeIndex.save();
+            mFinished.sendToTarget();
         }
     }
 
-    private static long getDirectorySize(IMediaContainerService imcs, File path) {
+    private long getDirectorySize(IMediaContainerService imcs, File path) {
+        final long indexedSize = mSizeIndex.getDirectorySize(path);
+        if (indexedSize >= 0) {
+            if (LOGV) Log.v(TAG, "getDirectorySize(" + path + ") indexed " + indexedSize);
+            return indexedSize;
+        }
+
+        // Not readable from here, let the container service measure it
+        if (imcs == null) {
+            Log.w(TAG, "Not connected to default container service, can't measure " + path);
+            return 0;
+        }
         try {
             final long size = imcs.calculateDirectorySize(path.toString());
             Log.d(TAG, "getDirectorySize(" + path + ") returned " + size);
@@ -471,10 +696,16 @@ public class StorageMeasurement {
     }
 
     private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
+        mMiscDir = dir;
+
+        // Only published once complete, the misc files screen may be reading it
+        final ArrayList<FileInfo> fileInfoForMisc = new ArrayList<FileInfo>();
 
         final File[] files = dir.listFiles();
-        if (files == null) return 0;
+        if (files == null) {
+            mFileInfoForMisc = fileInfoForMisc;
+            return 0;
+        }
 
         // Get sizes of all top level nodes except the ones already computed
         long counter = 0;
@@ -489,11 +720,11 @@ public class StorageMeasurement {
 
             if (file.isFile()) {
                 final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
+                fileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
                 miscSize += fileSize;
             } else if (file.isDirectory()) {
                 final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
+                fileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
                 miscSize += dirSize;
             } else {
                 // Non directory, non file: not listed
@@ -501,7 +732,8 @@ public class StorageMeasurement {
         }
 
         // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+        Collections.sort(fileInfoForMisc);
+        mFileInfoForMisc = fileInfoForMisc;
 
         return miscSize;
     }
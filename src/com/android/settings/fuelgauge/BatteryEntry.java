@@ -34,9 +34,10 @@ import android.util.Log;
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.net.UidDetail;
+import com.android.settings.net.UidDetailCache;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -46,32 +47,23 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
-
     static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
-
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
-
-        public void abort() {
-            mAbort = true;
-        }
+    // Whether sNameAndIconLoader is queued or running, guarded by mRequestQueue
+    private static boolean sLoaderQueued;
 
+    private static final Runnable sNameAndIconLoader = new Runnable() {
         @Override
         public void run() {
             while (true) {
                 BatteryEntry be;
                 synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
+                    if (mRequestQueue.isEmpty()) {
                         if (sHandler != null) {
                             sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
                         }
-                        mRequestQueue.clear();
+                        sLoaderQueued = false;
                         return;
                     }
                     be = mRequestQueue.remove(0);
@@ -79,21 +71,15 @@ public class BatteryEntry {
                 be.loadNameAndIcon();
             }
         }
-    }
-
-    private static NameAndIconLoader mRequestThread;
+    };
 
     public static void startRequestQueue() {
         if (sHandler != null) {
             synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
+                if (!mRequestQueue.isEmpty() && !sLoaderQueued) {
+                    sLoaderQueued = true;
+                    UidDetailCache.getInstance().execute(sNameAndIconLoader,
+                            UidDetailCache.PRIORITY_BACKGROUND);
                 }
             }
         }
@@ -101,16 +87,13 @@ public class BatteryEntry {
 
     public static void stopRequestQueue() {
         synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
-            }
+            mRequestQueue.clear();
+            sHandler = null;
         }
     }
 
     public static void clearUidCache() {
-        sUidCache.clear();
+        UidDetailCache.getInstance().clear(UidDetailCache.KIND_BATTERY);
     }
 
     public final Context context;
@@ -121,12 +104,6 @@ public class BatteryEntry {
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
 
-    static class UidToDetail {
-        String name;
-        String packageName;
-        Drawable icon;
-    }
-
     public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
         sHandler = handler;
         this.context = context;
@@ -204,11 +181,10 @@ public class BatteryEntry {
 
     void getQuickNameIconForUid(BatteryStats.Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
+        final UidDetail utd = UidDetailCache.getInstance().get(UidDetailCache.KIND_BATTERY, uid);
+        if (utd != null) {
             defaultPackageName = utd.packageName;
-            name = utd.name;
+            name = utd.label != null ? utd.label.toString() : null;
             icon = utd.icon;
             return;
         }
@@ -315,12 +291,11 @@ public class BatteryEntry {
                 }
             }
         }
-        final String uidString = Integer.toString(sipper.uidObj.getUid());
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
+        UidDetail utd = new UidDetail();
+        utd.label = name;
         utd.icon = icon;
         utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
+        UidDetailCache.getInstance().put(UidDetailCache.KIND_BATTERY, uid, utd);
         if (sHandler != null) {
             sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
         }
@@ -46,6 +46,7 @@ import android.view.View;
 import libcore.icu.LocaleData;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
 
@@ -116,6 +117,154 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * The records of the battery history drawn by the chart, read once by {@link #setStats} so
+     * that laying out the chart again does not iterate the history again.
+     */
+    static class HistoryDigest {
+        int mNum;
+        long[] mTimes = new long[0];
+        long[] mCurrentTimes = new long[0];
+        byte[] mCmds = new byte[0];
+        byte[] mLevels = new byte[0];
+        int[] mStates = new int[0];
+        int[] mStates2 = new int[0];
+
+        // Set by computeWallTimes()
+        long[] mWallTimes = new long[0];
+        // Whether the lines stop at a record, only for records that are not delta data
+        boolean[] mBreaks = new boolean[0];
+
+        // Set by decimate(): the records to draw at most two per pixel column and their x
+        int mNumKept;
+        int[] mKept = new int[0];
+        int[] mKeptX = new int[0];
+        int mKeptLeft = -1;
+        int mKeptWidth = -1;
+
+        void clear() {
+            mNum = 0;
+            mNumKept = 0;
+            mKeptLeft = mKeptWidth = -1;
+        }
+
+        void add(HistoryItem rec) {
+            if (mNum == mTimes.length) {
+                grow();
+            }
+            mTimes[mNum] = rec.time;
+            mCurrentTimes[mNum] = rec.currentTime;
+            mCmds[mNum] = rec.cmd;
+            mLevels[mNum] = rec.batteryLevel;
+            mStates[mNum] = rec.states;
+            mStates2[mNum] = rec.states2;
+            mNum++;
+        }
+
+        /**
+         * Drop the records after the first num ones.
+         */
+        void trim(int num) {
+            if (num < mNum) {
+                mNum = num;
+            }
+        }
+
+        private void grow() {
+            final int size = Math.max(256, mTimes.length*2);
+            mTimes = Arrays.copyOf(mTimes, size);
+            mCurrentTimes = Arrays.copyOf(mCurrentTimes, size);
+            mCmds = Arrays.copyOf(mCmds, size);
+            mLevels = Arrays.copyOf(mLevels, size);
+            mStates = Arrays.copyOf(mStates, size);
+            mStates2 = Arrays.copyOf(mStates2, size);
+        }
+
+        /**
+         * Compute the wall clock time of each record, and where the lines stop.
+         */
+        void computeWallTimes(long startWallTime, long histStart) {
+            if (mWallTimes.length < mNum) {
+                mWallTimes = new long[mTimes.length];
+                mBreaks = new boolean[mTimes.length];
+            }
+            long curWalltime = startWallTime;
+            long lastRealtime = 0;
+            for (int i=0; i<mNum; i++) {
+                final byte cmd = mCmds[i];
+                if (cmd == HistoryItem.CMD_UPDATE) {
+                    curWalltime += mTimes[i]-lastRealtime;
+                    lastRealtime = mTimes[i];
+                    mBreaks[i] = false;
+                } else {
+                    long lastWalltime = curWalltime;
+                    if (cmd == HistoryItem.CMD_CURRENT_TIME || cmd == HistoryItem.CMD_RESET) {
+                        if (mCurrentTimes[i] >= startWallTime) {
+                            curWalltime = mCurrentTimes[i];
+                        } else {
+                            curWalltime = startWallTime + (mTimes[i]-histStart);
+                        }
+                        lastRealtime = mTimes[i];
+                    }
+                    mBreaks[i] = cmd != HistoryItem.CMD_OVERFLOW
+                            && (cmd != HistoryItem.CMD_CURRENT_TIME
+                                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000));
+                }
+                mWallTimes[i] = curWalltime;
+            }
+            mNumKept = 0;
+            mKeptLeft = mKeptWidth = -1;
+        }
+
+        /**
+         * Pick the records to draw for a chart width.  Only the first and the last delta of
+         * each pixel column are kept, what happens in between can't be seen anyway.
+         */
+        void decimate(int left, int width, long walltimeStart, long walltimeChange) {
+            if (left == mKeptLeft && width == mKeptWidth) {
+                return;
+            }
+            if (mKept.length < mNum) {
+                mKept = new int[mTimes.length];
+                mKeptX = new int[mTimes.length];
+            }
+            int n = 0;
+            int columnX = -1;
+            int columnKept = 0;
+            for (int i=0; i<mNum; i++) {
+                if (mCmds[i] != HistoryItem.CMD_UPDATE) {
+                    if (mBreaks[i]) {
+                        mKept[n] = i;
+                        mKeptX[n] = -1;
+                        n++;
+                        columnX = -1;
+                        columnKept = 0;
+                    }
+                    continue;
+                }
+                int x = left + (int)(((mWallTimes[i]-walltimeStart)*width)/walltimeChange);
+                if (x < 0) {
+                    x = 0;
+                }
+                if (x != columnX) {
+                    columnX = x;
+                    columnKept = 0;
+                } else if (columnKept >= 2) {
+                    // Replace the last one of the column
+                    n--;
+                    columnKept--;
+                }
+                mKept[n] = i;
+                mKeptX[n] = x;
+                n++;
+                columnKept++;
+            }
+            mNumKept = n;
+            mKeptLeft = left;
+            mKeptWidth = width;
+        }
+    }
+
     static final int SANS = 1;
     static final int SERIF = 2;
     static final int MONOSPACE = 3;
@@ -136,6 +285,7 @@ public class BatteryHistoryChart extends View {
     final Paint mCpuRunningPaint = new Paint();
     final Paint mDateLinePaint = new Paint();
     final ChartData mPhoneSignalChart = new ChartData();
+    final HistoryDigest mHistory = new HistoryDigest();
     final TextPaint mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
     final TextPaint mHeaderTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
     final Paint mDebugRectPaint = new Paint();
@@ -205,7 +355,6 @@ public class BatteryHistoryChart extends View {
     int mLevelLeft;
     int mLevelRight;
 
-    int mNumHist;
     long mHistStart;
     long mHistDataEnd;
     long mHistEnd;
@@ -556,10 +705,12 @@ public class BatteryHistoryChart extends View {
         int aggrStates = 0;
         int aggrStates2 = 0;
         boolean first = true;
+        mHistory.clear();
         if (stats.startIteratingHistoryLocked()) {
             final HistoryItem rec = new HistoryItem();
             while (stats.getNextHistoryLocked(rec)) {
                 pos++;
+                mHistory.add(rec);
                 if (first) {
                     first = false;
                     mHistStart = rec.time;
@@ -594,11 +745,13 @@ public class BatteryHistoryChart extends View {
                     aggrStates2 |= rec.states2;
                 }
             }
+            stats.finishIteratingHistoryLocked();
         }
         mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
         mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
         mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
+        mHistory.trim(lastInteresting);
+        mHistory.computeWallTimes(mStartWallTime, mHistStart);
         mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
         mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
                 || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
@@ -765,8 +918,6 @@ public class BatteryHistoryChart extends View {
         final long walltimeStart = mStartWallTime;
         final long walltimeChange = mEndWallTime > walltimeStart
                 ? (mEndWallTime-walltimeStart) : 1;
-        long curWalltime = mStartWallTime;
-        long lastRealtime = 0;
 
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
@@ -775,41 +926,40 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
-                    x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
-                    if (x < 0) {
-                        x = 0;
-                    }
+        final HistoryDigest hist = mHistory;
+        if (mEndDataWallTime > mStartWallTime) {
+            hist.decimate(mLevelLeft, levelWidth, walltimeStart, walltimeChange);
+            final int N = hist.mNumKept;
+            for (int k=0; k<N; k++) {
+                final int i = hist.mKept[k];
+                if (hist.mCmds[i] == HistoryItem.CMD_UPDATE) {
+                    final byte batteryLevel = hist.mLevels[i];
+                    final int states = hist.mStates[i];
+                    final int states2 = hist.mStates2[i];
+                    x = hist.mKeptX[k];
                     if (false) {
                         StringBuilder sb = new StringBuilder(128);
                         sb.append("walloff=");
-                        TimeUtils.formatDuration(curWalltime - walltimeStart, sb);
+                        TimeUtils.formatDuration(hist.mWallTimes[i] - walltimeStart, sb);
                         sb.append(" wallchange=");
                         TimeUtils.formatDuration(walltimeChange, sb);
                         sb.append(" x=");
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
+                    y = mLevelTop + levelh - ((batteryLevel-batLow)*(levelh-1))/batChange;
 
                     if (lastX != x) {
                         // We have moved by at least a pixel.
                         if (lastY != y) {
                             // Don't plot changes within a pixel.
                             Path path;
-                            byte value = rec.batteryLevel;
+                            byte value = batteryLevel;
                             if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
                             else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
                             else path = null; //mBatGoodPath;
@@ -840,7 +990,7 @@ public class BatteryHistoryChart extends View {
 
                     if (mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
                             if (charging) {
                                 mChargingPath.moveTo(x, h-mChargingOffset);
@@ -851,7 +1001,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
                             if (screenOn) {
                                 mScreenOnPath.moveTo(x, h-mScreenOnOffset);
@@ -862,7 +1012,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
                             if (gpsOn) {
                                 mGpsOnPath.moveTo(x, h-mGpsOnOffset);
@@ -873,7 +1023,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -894,7 +1044,7 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
@@ -909,7 +1059,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
                             if (cpuRunning) {
                                 mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
@@ -921,14 +1071,14 @@ public class BatteryHistoryChart extends View {
 
                         if (mLargeMode && mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
@@ -936,36 +1086,17 @@ public class BatteryHistoryChart extends View {
                         }
                     }
 
-                } else {
-                    long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
-                        } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
-                        }
-                        lastRealtime = rec.time;
-                    }
-
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
-                                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
-                        if (curLevelPath != null) {
-                            finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                    lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                    lastCpuRunning, lastLinePath);
-                            lastX = lastY = -1;
-                            curLevelPath = null;
-                            lastLinePath = null;
-                            lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
-                        }
-                    }
+                } else if (curLevelPath != null) {
+                    // Only the records where the lines stop are kept.
+                    finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                            lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                            lastCpuRunning, lastLinePath);
+                    lastX = lastY = -1;
+                    curLevelPath = null;
+                    lastLinePath = null;
+                    lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
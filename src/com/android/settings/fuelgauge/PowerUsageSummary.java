@@ -22,11 +22,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.drawable.Drawable;
+import android.os.BatteryManager;
 import android.os.BatteryStats;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.Preference;
@@ -45,6 +49,8 @@ import com.android.settings.HelpUtils;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -80,7 +86,11 @@ public class PowerUsageSummary extends PreferenceFragment {
     private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
     private static final int SECONDS_IN_HOUR = 60 * 60;
 
-    private BatteryStatsHelper mStatsHelper;
+    private HandlerThread mStatsThread;
+    private StatsHandler mStatsHandler;
+
+    // Last snapshot shown, only used on the main thread.
+    private StatsSnapshot mSnapshot;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -100,36 +110,29 @@ public class PowerUsageSummary extends PreferenceFragment {
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         mUm = (UserManager) activity.getSystemService(Context.USER_SERVICE);
-        mStatsHelper = new BatteryStatsHelper(activity, true);
     }
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
-        mStatsHelper.create(icicle);
+
+        mStatsThread = new HandlerThread("PowerUsageSummary", Process.THREAD_PRIORITY_BACKGROUND);
+        mStatsThread.start();
+        mStatsHandler = new StatsHandler(getActivity(), mStatsThread.getLooper());
 
         addPreferencesFromResource(R.xml.power_usage_summary);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
         setHasOptionsMenu(true);
     }
 
-    @Override
-    public void onStart() {
-        super.onStart();
-        mStatsHelper.clearStats();
-    }
-
     @Override
     public void onResume() {
         super.onResume();
         BatteryStatsHelper.dropFile(getActivity(), BATTERY_HISTORY_FILE);
         updateBatteryStatus(getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
-        if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
-            mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
-        }
-        refreshStats();
+        mHandler.removeMessages(MSG_REFRESH_STATS);
+        refreshStats(false);
     }
 
     @Override
@@ -149,8 +152,8 @@ public class PowerUsageSummary extends PreferenceFragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mStatsThread.quit();
         if (getActivity().isChangingConfigurations()) {
-            mStatsHelper.storeState();
             BatteryEntry.clearUidCache();
         }
     }
@@ -158,11 +161,10 @@ public class PowerUsageSummary extends PreferenceFragment {
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
+            mSnapshot.helper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
             Bundle args = new Bundle();
             args.putString(BatteryHistoryDetail.EXTRA_STATS, BATTERY_HISTORY_FILE);
-            args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST,
-                    mStatsHelper.getBatteryBroadcast());
+            args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST, mSnapshot.batteryBroadcast);
             SettingsActivity sa = (SettingsActivity) getActivity();
             sa.startPreferencePanel(BatteryHistoryDetail.class.getName(), args,
                     R.string.history_details_title, null, null, 0);
@@ -173,8 +175,8 @@ public class PowerUsageSummary extends PreferenceFragment {
         }
         PowerGaugePreference pgp = (PowerGaugePreference) preference;
         BatteryEntry entry = pgp.getInfo();
-        PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(), mStatsHelper,
-                mStatsType, entry, true);
+        PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(),
+                mSnapshot.helper, mSnapshot.statsType, entry, true);
         return super.onPreferenceTreeClick(preferenceScreen, preference);
     }
 
@@ -210,11 +212,10 @@ public class PowerUsageSummary extends PreferenceFragment {
                 } else {
                     mStatsType = BatteryStats.STATS_SINCE_CHARGED;
                 }
-                refreshStats();
+                refreshStats(true);
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
-                refreshStats();
+                refreshStats(true);
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
             case MENU_BATTERY_SAVER:
@@ -248,26 +249,123 @@ public class PowerUsageSummary extends PreferenceFragment {
         return false;
     }
 
-    private void refreshStats() {
-        mAppListGroup.removeAll();
-        mAppListGroup.setOrderingAsAdded(false);
-        mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
-                mStatsHelper.getBatteryBroadcast());
-        mHistPref.setOrder(-1);
-        mAppListGroup.addPreference(mHistPref);
-        boolean addedSome = false;
+    /**
+     * Ask for the stats to be computed again in the background.  Unless forced, the list is
+     * only rebuilt when the battery level, plug state or discharge amount changed.
+     */
+    private void refreshStats(boolean force) {
+        mStatsHandler.removeMessages(StatsHandler.MSG_COMPUTE_STATS);
+        mStatsHandler.obtainMessage(StatsHandler.MSG_COMPUTE_STATS, force ? 1 : 0, mStatsType)
+                .sendToTarget();
+    }
+
+    /**
+     * What is shown for a computation of the stats.  Never modified once published, the
+     * helper included: each computation uses a new one.
+     */
+    private static final class StatsSnapshot {
+        final int statsType;
+        final BatteryStatsHelper helper;
+        final BatteryStats stats;
+        final Intent batteryBroadcast;
+        final int level;
+        final int plugged;
+        final int dischargeAmount;
+        final long startClockTime;
+
+        // Set, unmodifiable, before the snapshot is published
+        List<SipperRow> rows = Collections.emptyList();
+
+        StatsSnapshot(int statsType, BatteryStatsHelper helper) {
+            this.statsType = statsType;
+            this.helper = helper;
+            stats = helper.getStats();
+            batteryBroadcast = helper.getBatteryBroadcast();
+            level = batteryBroadcast != null
+                    ? batteryBroadcast.getIntExtra(BatteryManager.EXTRA_LEVEL, -1) : -1;
+            plugged = batteryBroadcast != null
+                    ? batteryBroadcast.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1) : -1;
+            dischargeAmount = stats != null ? stats.getDischargeAmount(statsType) : 0;
+            startClockTime = stats != null ? stats.getStartClockTime() : 0;
+        }
+
+        boolean isSameAs(StatsSnapshot other) {
+            return other != null && statsType == other.statsType && level == other.level
+                    && plugged == other.plugged && dischargeAmount == other.dischargeAmount
+                    && startClockTime == other.startClockTime;
+        }
+    }
+
+    private static final class SipperRow {
+        final BatterySipper sipper;
+        final double percentOfMax;
+        final double percentOfTotal;
+        final int order;
+
+        SipperRow(BatterySipper sipper, double percentOfMax, double percentOfTotal, int order) {
+            this.sipper = sipper;
+            this.percentOfMax = percentOfMax;
+            this.percentOfTotal = percentOfTotal;
+            this.order = order;
+        }
+    }
+
+    private final class StatsHandler extends Handler {
+        static final int MSG_COMPUTE_STATS = 1;
+
+        private final Context mContext;
+
+        // Last snapshot computed, only used on this thread.
+        private StatsSnapshot mLastSnapshot;
+
+        StatsHandler(Context context, Looper looper) {
+            super(looper);
+            mContext = context;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_COMPUTE_STATS:
+                    final StatsSnapshot snapshot = computeStats(msg.arg1 != 0, msg.arg2);
+                    mHandler.obtainMessage(MSG_SHOW_STATS, snapshot).sendToTarget();
+                    break;
+            }
+        }
 
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
+        /**
+         * @return the new snapshot, or the last one if nothing changed since
+         */
+        private StatsSnapshot computeStats(boolean force, int statsType) {
+            // BatteryStatsHelper is not thread safe: the helper of a published snapshot is
+            // left to the main thread, and the stats are loaded into a new one.
+            final BatteryStatsHelper helper = new BatteryStatsHelper(mContext, true);
+            helper.create((Bundle) null);
+            final StatsSnapshot snapshot = new StatsSnapshot(statsType, helper);
+            if (!force && snapshot.isSameAs(mLastSnapshot)) {
+                return mLastSnapshot;
+            }
+
+            final PowerProfile powerProfile = helper.getPowerProfile();
+            final double averagePower = powerProfile.getAveragePower(
+                    PowerProfile.POWER_SCREEN_FULL);
+            if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
+                snapshot.rows = Collections.unmodifiableList(collectSippers(helper, snapshot));
+            }
+            mLastSnapshot = snapshot;
+            return snapshot;
+        }
+
+        private ArrayList<SipperRow> collectSippers(BatteryStatsHelper helper,
+                StatsSnapshot snapshot) {
             final List<UserHandle> profiles = mUm.getUserProfiles();
 
-            mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
+            helper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
 
-            final List<BatterySipper> usageList = mStatsHelper.getUsageList();
+            final List<BatterySipper> usageList = helper.getUsageList();
+            final ArrayList<SipperRow> rows = new ArrayList<SipperRow>();
 
-            final int dischargeAmount = stats != null ? stats.getDischargeAmount(mStatsType) : 0;
+            final int dischargeAmount = snapshot.dischargeAmount;
             final int numSippers = usageList.size();
             for (int i = 0; i < numSippers; i++) {
                 final BatterySipper sipper = usageList.get(i);
@@ -275,14 +373,14 @@ public class PowerUsageSummary extends PreferenceFragment {
                     continue;
                 }
                 final double percentOfTotal =
-                        ((sipper.value / mStatsHelper.getTotalPower()) * dischargeAmount);
+                        ((sipper.value / helper.getTotalPower()) * dischargeAmount);
                 if (((int) (percentOfTotal + .5)) < 1) {
                     continue;
                 }
                 if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
                     // Don't show over-counted unless it is at least 2/3 the size of
                     // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < ((mStatsHelper.getMaxRealPower()*2)/3)) {
+                    if (sipper.value < ((helper.getMaxRealPower()*2)/3)) {
                         continue;
                     }
                     if (percentOfTotal < 10) {
@@ -295,7 +393,7 @@ public class PowerUsageSummary extends PreferenceFragment {
                 if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
                     // Don't show over-counted unless it is at least 1/2 the size of
                     // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < (mStatsHelper.getMaxRealPower()/2)) {
+                    if (sipper.value < (helper.getMaxRealPower()/2)) {
                         continue;
                     }
                     if (percentOfTotal < 5) {
@@ -305,31 +403,54 @@ public class PowerUsageSummary extends PreferenceFragment {
                         continue;
                     }
                 }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
-                final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
-                        userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
-                        badgedIcon, contentDescription, entry);
-
-                final double percentOfMax = (sipper.value * 100) / mStatsHelper.getMaxPower();
+                final double percentOfMax = (sipper.value * 100) / helper.getMaxPower();
                 sipper.percent = percentOfTotal;
-                pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
-                addedSome = true;
-                mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST + 1)) {
+                rows.add(new SipperRow(sipper, percentOfMax, percentOfTotal, i + 1));
+                if (rows.size() > MAX_ITEMS_TO_LIST) {
                     break;
                 }
             }
+            return rows;
+        }
+    }
+
+    private void showStats(StatsSnapshot snapshot) {
+        if (snapshot == mSnapshot) {
+            // Nothing changed, the list is still up to date
+            BatteryEntry.startRequestQueue();
+            return;
+        }
+        mSnapshot = snapshot;
+
+        mAppListGroup.removeAll();
+        mAppListGroup.setOrderingAsAdded(false);
+        mHistPref = new BatteryHistoryPreference(getActivity(), snapshot.stats,
+                snapshot.batteryBroadcast);
+        mHistPref.setOrder(-1);
+        mAppListGroup.addPreference(mHistPref);
+
+        final int numRows = snapshot.rows.size();
+        for (int i = 0; i < numRows; i++) {
+            final SipperRow row = snapshot.rows.get(i);
+            final BatterySipper sipper = row.sipper;
+            final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
+            final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
+            final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
+                    userHandle);
+            final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
+                    userHandle);
+            final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
+                    badgedIcon, contentDescription, entry);
+
+            pref.setTitle(entry.getLabel());
+            pref.setOrder(row.order);
+            pref.setPercent(row.percentOfMax, row.percentOfTotal);
+            if (sipper.uidObj != null) {
+                pref.setKey(Integer.toString(sipper.uidObj.getUid()));
+            }
+            mAppListGroup.addPreference(pref);
         }
-        if (!addedSome) {
+        if (numRows == 0) {
             addNotAvailableMessage();
         }
 
@@ -337,6 +458,7 @@ public class PowerUsageSummary extends PreferenceFragment {
     }
 
     static final int MSG_REFRESH_STATS = 100;
+    static final int MSG_SHOW_STATS = 101;
 
     Handler mHandler = new Handler() {
 
@@ -362,8 +484,13 @@ public class PowerUsageSummary extends PreferenceFragment {
                     }
                     break;
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
-                    refreshStats();
+                    refreshStats(false);
+                    break;
+                case MSG_SHOW_STATS:
+                    if (isResumed()) {
+                        showStats((StatsSnapshot) msg.obj);
+                    }
+                    break;
             }
             super.handleMessage(msg);
         }
@@ -42,6 +42,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private static final String KEY_FIELDS = "fields";
 
     private final INetworkStatsSession mSession;
+    private final NetworkStatsCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -59,6 +60,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
         super(context);
         mSession = session;
+        mCache = NetworkStatsCache.getInstance(context);
         mArgs = args;
     }
 
@@ -86,7 +88,7 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        data.network = mCache.getHistoryForNetwork(mSession, template, fields);
 
         if (app != null) {
             // load stats for current uid and template
@@ -132,14 +134,14 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     private NetworkStatsHistory collectHistoryForUid(
             NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
             throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
+        final NetworkStatsHistory history = mCache.getHistoryForUid(mSession,
                 template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
 
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+        if (existing == null) {
+            // The cached history is shared, combine into a new one
+            existing = new NetworkStatsHistory(history.getBucketDuration());
         }
+        existing.recordEntireHistory(history);
+        return existing;
     }
 }
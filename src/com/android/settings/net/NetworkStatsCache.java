@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Process wide cache of the histories and summaries read from {@link INetworkStatsSession}, so
+ * that switching between networks and cycles does not query them again.  Everything is dropped
+ * when the network stats service reports new stats.
+ *
+ * The cached objects are shared, callers must not modify them.
+ */
+public class NetworkStatsCache {
+    public interface Listener {
+        /**
+         * Called on the main thread after the network stats service polled new stats.
+         */
+        void onNetworkStatsUpdated();
+    }
+
+    /** Sent by NetworkStatsService after each poll of the network stats. */
+    private static final String ACTION_NETWORK_STATS_UPDATED =
+            "com.android.server.action.NETWORK_STATS_UPDATED";
+
+    private static final int MAX_ENTRIES = 32;
+
+    private static final int KIND_NETWORK_HISTORY = 0;
+    private static final int KIND_UID_HISTORY = 1;
+    private static final int KIND_SUMMARY = 2;
+
+    private static NetworkStatsCache sInstance;
+
+    private final LruCache<Key, Object> mEntries = new LruCache<Key, Object>(MAX_ENTRIES);
+
+    // Incremented on invalidation, so that loads started before are not cached.
+    private int mGeneration;
+
+    // Only used on the main thread
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private long mLastUpdatedRealtime;
+
+    public static synchronized NetworkStatsCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NetworkStatsCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NetworkStatsCache(Context context) {
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mLastUpdatedRealtime = SystemClock.elapsedRealtime();
+                invalidate();
+                for (int i = 0; i < mListeners.size(); i++) {
+                    mListeners.get(i).onNetworkStatsUpdated();
+                }
+            }
+        }, new IntentFilter(ACTION_NETWORK_STATS_UPDATED));
+    }
+
+    public NetworkStatsHistory getHistoryForNetwork(INetworkStatsSession session,
+            NetworkTemplate template, int fields) throws RemoteException {
+        final Key key = new Key(KIND_NETWORK_HISTORY, template, 0, 0, 0, fields, 0, 0);
+        NetworkStatsHistory history = (NetworkStatsHistory) mEntries.get(key);
+        if (history == null) {
+            final int generation = getGeneration();
+            history = session.getHistoryForNetwork(template, fields);
+            put(generation, key, history);
+        }
+        return history;
+    }
+
+    public NetworkStatsHistory getHistoryForUid(INetworkStatsSession session,
+            NetworkTemplate template, int uid, int set, int tag, int fields)
+            throws RemoteException {
+        final Key key = new Key(KIND_UID_HISTORY, template, uid, set, tag, fields, 0, 0);
+        NetworkStatsHistory history = (NetworkStatsHistory) mEntries.get(key);
+        if (history == null) {
+            final int generation = getGeneration();
+            history = session.getHistoryForUid(template, uid, set, tag, fields);
+            put(generation, key, history);
+        }
+        return history;
+    }
+
+    public NetworkStats getSummaryForAllUid(INetworkStatsSession session,
+            NetworkTemplate template, long start, long end, boolean includeTags)
+            throws RemoteException {
+        final Key key = new Key(KIND_SUMMARY, template, 0, 0, includeTags ? 1 : 0, 0,
+                start, end);
+        NetworkStats stats = (NetworkStats) mEntries.get(key);
+        if (stats == null) {
+            final int generation = getGeneration();
+            stats = session.getSummaryForAllUid(template, start, end, includeTags);
+            put(generation, key, stats);
+        }
+        return stats;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return the {@link SystemClock#elapsedRealtime()} of the last stats update seen, or 0
+     */
+    public long getLastUpdatedRealtime() {
+        return mLastUpdatedRealtime;
+    }
+
+    /**
+     * Drop everything, the next reads go to the network stats service.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    private synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    private synchronized void put(int generation, Key key, Object value) {
+        if (value != null && generation == mGeneration) {
+            mEntries.put(key, value);
+        }
+    }
+
+    private static final class Key {
+        final int kind;
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int tag;
+        final int fields;
+        final long start;
+        final long end;
+
+        Key(int kind, NetworkTemplate template, int uid, int set, int tag, int fields,
+                long start, long end) {
+            this.kind = kind;
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.tag = tag;
+            this.fields = fields;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                final Key other = (Key) o;
+                return kind == other.kind && uid == other.uid && set == other.set
+                        && tag == other.tag && fields == other.fields && start == other.start
+                        && end == other.end && Objects.equals(template, other.template);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, template, uid, set, tag, fields, start, end);
+        }
+    }
+}
@@ -16,21 +16,43 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Collections;
+import java.util.List;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loads the data usage of all uids over a period, and collapses it into the items listed by
+ * {@link com.android.settings.DataUsageSummary}, off the main thread.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<AppUsageData> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
     private final INetworkStatsSession mSession;
+    private final NetworkStatsCache mCache;
     private final Bundle mArgs;
+    private final UserManager mUm;
+    private final NetworkPolicyManager mPolicyManager;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
         final Bundle args = new Bundle();
@@ -43,7 +65,10 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
         super(context);
         mSession = session;
+        mCache = NetworkStatsCache.getInstance(context);
         mArgs = args;
+        mUm = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        mPolicyManager = NetworkPolicyManager.from(context);
     }
 
     @Override
@@ -53,16 +78,139 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public AppUsageData loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        final NetworkStats stats;
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            stats = mCache.getSummaryForAllUid(mSession, template, start, end, false);
         } catch (RemoteException e) {
             return null;
         }
+        final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        return collapseStats(stats, restrictedUids);
+    }
+
+    /**
+     * Collapse the stats entries into one item per app of the current user and its profiles,
+     * one per other user, and one for the system.  The entries are read in a single pass,
+     * without allocating anything per entry.
+     */
+    private AppUsageData collapseStats(NetworkStats stats, int[] restrictedUids) {
+        final AppUsageData data = new AppUsageData();
+        final int currentUserId = ActivityManager.getCurrentUser();
+
+        // The current user and its profiles, whose apps are listed one by one
+        final List<UserHandle> profileHandles = mUm.getUserProfiles();
+        final SparseBooleanArray profiles = new SparseBooleanArray(profileHandles.size());
+        for (int i = 0; i < profileHandles.size(); i++) {
+            profiles.put(profileHandles.get(i).getIdentifier(), true);
+        }
+        // Whether the other users still exist, only looked up once per user
+        final SparseBooleanArray otherUsers = new SparseBooleanArray();
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (profiles.get(userId)) {
+                    if (userId != currentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        accumulate(data, knownItems, managedKey, uid, bytes,
+                                AppItem.CATEGORY_USER);
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    final int index = otherUsers.indexOfKey(userId);
+                    final boolean exists;
+                    if (index >= 0) {
+                        exists = otherUsers.valueAt(index);
+                    } else {
+                        exists = mUm.getUserInfo(userId) != null;
+                        otherUsers.put(userId, exists);
+                    }
+                    if (!exists) {
+                        // If it is a removed user add it to the removed users' key
+                        collapseKey = UID_REMOVED;
+                        category = AppItem.CATEGORY_APP;
+                    } else {
+                        // Add to other user item.
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                        category = AppItem.CATEGORY_USER;
+                    }
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(data, knownItems, collapseKey, uid, bytes, category);
+        }
+
+        final int restrictedUidsMax = restrictedUids != null ? restrictedUids.length : 0;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!profiles.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                data.items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        if (!data.items.isEmpty()) {
+            final AppItem title = new AppItem();
+            title.category = AppItem.CATEGORY_APP_TITLE;
+            data.items.add(title);
+        }
+
+        Collections.sort(data.items);
+        return data;
+    }
+
+    /**
+     * Accumulate data usage of a uid for the item mapped by the collapse key.
+     * Creates the item if needed.
+     */
+    private static void accumulate(AppUsageData data, SparseArray<AppItem> knownItems,
+            int collapseKey, int uid, long bytes, int itemCategory) {
+        AppItem item = knownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = itemCategory;
+            data.items.add(item);
+            knownItems.put(item.key, item);
+        }
+        item.addUid(uid);
+        item.total += bytes;
+        if (data.largest < item.total) {
+            data.largest = item.total;
+        }
     }
 
     @Override
@@ -24,4 +24,6 @@ public class UidDetail {
     public CharSequence[] detailLabels;
     public CharSequence[] detailContentDescriptions;
     public Drawable icon;
+    /** Package the label and icon come from, if any. */
+    public String packageName;
 }
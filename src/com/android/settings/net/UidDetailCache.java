@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide, size bounded cache of the labels and icons resolved for uids, shared by the
+ * data usage and battery usage screens, along with the threads resolving them.
+ *
+ * The data usage and battery usage screens resolve uids differently (badged icons, package
+ * names), so their entries are kept apart by kind.
+ */
+public class UidDetailCache {
+    private static final String TAG = "UidDetailCache";
+
+    public static final int KIND_DATA_USAGE = 0;
+    public static final int KIND_BATTERY = 1;
+
+    /** For the rows being shown. */
+    public static final int PRIORITY_FOREGROUND = 1;
+    /** For resolving a whole list ahead of time. */
+    public static final int PRIORITY_BACKGROUND = 0;
+
+    private static final int MAX_ENTRIES = 128;
+
+    private static final int LOADER_COUNT = 2;
+    private static final int LOADER_KEEP_ALIVE_SECONDS = 3;
+
+    private static UidDetailCache sInstance;
+
+    private final LruCache<Long, UidDetail> mEntries = new LruCache<Long, UidDetail>(MAX_ENTRIES);
+
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private final ThreadPoolExecutor mLoaders;
+
+    public static synchronized UidDetailCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new UidDetailCache();
+        }
+        return sInstance;
+    }
+
+    private UidDetailCache() {
+        mLoaders = new ThreadPoolExecutor(LOADER_COUNT, LOADER_COUNT,
+                LOADER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("UidDetailLoader #" + mCount.getAndIncrement()) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+        mLoaders.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the cached detail, or null if the uid was not resolved yet
+     */
+    public UidDetail get(int kind, int uid) {
+        return mEntries.get(makeKey(kind, uid));
+    }
+
+    public void put(int kind, int uid, UidDetail detail) {
+        if (detail != null) {
+            mEntries.put(makeKey(kind, uid), detail);
+        }
+    }
+
+    /**
+     * Drop the entries of a kind.
+     */
+    public void clear(int kind) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Clearing kind " + kind + ", " + mEntries);
+        }
+        // snapshot() is a copy, so entries can be removed while going through it
+        for (Map.Entry<Long, UidDetail> entry : mEntries.snapshot().entrySet()) {
+            if (getKind(entry.getKey()) == kind) {
+                mEntries.remove(entry.getKey());
+            }
+        }
+    }
+
+    public int getHitCount() {
+        return mEntries.hitCount();
+    }
+
+    public int getMissCount() {
+        return mEntries.missCount();
+    }
+
+    /**
+     * Run a task on the loader threads.  Tasks of a higher priority run first, tasks of the
+     * same priority in the order they were submitted.
+     */
+    public void execute(Runnable task, int priority) {
+        mLoaders.execute(new PrioritizedTask(task, priority, mSequence.getAndIncrement()));
+    }
+
+    /**
+     * @return an executor running its tasks on the loader threads at the given priority, for
+     *         use with {@link android.os.AsyncTask#executeOnExecutor}
+     */
+    public Executor getExecutor(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                UidDetailCache.this.execute(task, priority);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return mEntries.toString();
+    }
+
+    private static long makeKey(int kind, int uid) {
+        return ((long) kind << 32) | (uid & 0xffffffffL);
+    }
+
+    private static int getKind(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Runnable mTask;
+        private final int mPriority;
+        private final int mSequence;
+
+        PrioritizedTask(Runnable task, int priority, int sequence) {
+            mTask = task;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
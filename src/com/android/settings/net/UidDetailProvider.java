@@ -33,11 +33,12 @@ import android.os.UserHandle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
 
+import java.util.concurrent.Executor;
+
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
@@ -45,7 +46,7 @@ import com.android.settings.Utils;
 public class UidDetailProvider {
     private static final String TAG = "DataUsage";
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final UidDetailCache mUidDetailCache;
 
     public static final int OTHER_USER_RANGE_START = -2000;
 
@@ -63,25 +64,25 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mUidDetailCache = UidDetailCache.getInstance();
     }
 
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
-        }
+        mUidDetailCache.clear(UidDetailCache.KIND_DATA_USAGE);
+    }
+
+    /**
+     * @return the threads to resolve details on, see {@link UidDetailCache#getExecutor}
+     */
+    public Executor getExecutor() {
+        return mUidDetailCache.getExecutor(UidDetailCache.PRIORITY_FOREGROUND);
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
-
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
-        }
-
+        UidDetail detail = mUidDetailCache.get(UidDetailCache.KIND_DATA_USAGE, uid);
         if (detail != null) {
             return detail;
         } else if (!blocking) {
@@ -89,10 +90,7 @@ public class UidDetailProvider {
         }
 
         detail = buildUidDetail(uid);
-
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
-        }
+        mUidDetailCache.put(UidDetailCache.KIND_DATA_USAGE, uid, detail);
 
         return detail;
     }
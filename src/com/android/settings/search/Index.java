@@ -27,11 +27,12 @@ import android.content.pm.ResolveInfo;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.MergeCursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Process;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -44,18 +45,33 @@ import com.android.settings.R;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -84,6 +100,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.FingerprintsColumns;
 
 public class Index {
 
@@ -140,13 +157,42 @@ public class Index {
             IndexColumns.DATA_ENTRIES
     };
 
+    private static final String[] MATCH_COLUMNS_ALL = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES
+    };
+
+    // Weights of the Index table columns, in the order used by matchinfo()
+    private static final float[] INDEX_TABLE_COLUMN_WEIGHTS =
+            SearchScorer.getColumnWeights(IndexDatabaseHelper.INDEX_TABLE_COLUMNS);
+
+    // Max number of search results
+    static final int MAX_SEARCH_RESULTS = 100;
+
     // Max number of saved search queries (who will be used for proposing suggestions)
-    private static long MAX_SAVED_SEARCH_QUERY = 64;
+    private static final int MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
 
     private static final String BASE_AUTHORITY = "com.android.settings";
 
+    // matchinfo() format: phrase count, column count, row count, average column lengths,
+    // column lengths of the row, and then hits per phrase and column
+    private static final String MATCHINFO_FORMAT = "pcnalx";
+
+    private static final String SEARCH_SQL = buildSearchSQL();
+    private static final String SAVED_QUERIES_SQL = buildSavedQueriesSQL();
+
+    private static final String[] SUGGESTIONS_COLUMNS = new String[] {
+            IndexDatabaseHelper.SavedQueriesColums.QUERY
+    };
+
     private static final String EMPTY = "";
     private static final String NON_BREAKING_HYPHEN = "\u2011";
     private static final String HYPHEN = "-";
@@ -160,6 +206,41 @@ public class Index {
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    // Columns written by the Indexer. If you change the order of columns here, you SHOULD change
+    // the binding order in insertIndexRow()
+    private static final String[] INSERT_COLUMNS = new String[] {
+            IndexColumns.DOCID,
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ICON,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
+    private static final String INSERT_INDEX_ROW_SQL = buildInsertIndexRowSQL();
+
+    // Number of workers used for fetching the remote providers and parsing the resources.
+    // The database itself is only written by the UpdateIndexTask thread.
+    private static final int INDEXING_WORKER_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int INDEXING_WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    private static ExecutorService sIndexingExecutor;
+
     private static Index sInstance;
 
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
@@ -174,6 +255,7 @@ public class Index {
         public Map<String, List<String>> nonIndexableKeys;
 
         public boolean forceUpdate = false;
+        public boolean fetchRemoteProviders = false;
 
         public UpdateData() {
             dataToUpdate = new ArrayList<SearchIndexableData>();
@@ -186,6 +268,7 @@ public class Index {
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
             forceUpdate = other.forceUpdate;
+            fetchRemoteProviders = other.fetchRemoteProviders;
         }
 
         public UpdateData copy() {
@@ -197,11 +280,100 @@ public class Index {
             dataToDelete.clear();
             nonIndexableKeys.clear();
             forceUpdate = false;
+            fetchRemoteProviders = false;
+        }
+    }
+
+    /**
+     * Statistics of the last pass done by the Indexer
+     */
+    public static class IndexingStats {
+        public String locale;
+        public boolean forceUpdate;
+        public int dataReused;
+        public int dataRebuilt;
+        public int rowsReused;
+        public int rowsRebuilt;
+        public int dataRemoved;
+        public int remoteProviders;
+        public long durationMillis;
+
+        @Override
+        public String toString() {
+            return "IndexingStats{locale=" + locale + ", forceUpdate=" + forceUpdate +
+                    ", dataReused=" + dataReused + ", dataRebuilt=" + dataRebuilt +
+                    ", rowsReused=" + rowsReused + ", rowsRebuilt=" + rowsRebuilt +
+                    ", dataRemoved=" + dataRemoved + ", remoteProviders=" + remoteProviders +
+                    ", durationMillis=" + durationMillis + "}";
+        }
+    }
+
+    /**
+     * A private class to describe a fingerprint saved into the Index database
+     */
+    private static class Fingerprint {
+        public final String className;
+        public final String value;
+        public final int rowCount;
+
+        public Fingerprint(String className, String value, int rowCount) {
+            this.className = className;
+            this.value = value;
+            this.rowCount = rowCount;
+        }
+    }
+
+    /**
+     * A private class to describe the data fetched from a remote SearchIndexablesProvider
+     */
+    private static class RemoteProviderData {
+        public final String packageName;
+        public final List<SearchIndexableData> indexables;
+        public final List<String> nonIndexableKeys;
+
+        public RemoteProviderData(String packageName, List<SearchIndexableData> indexables,
+                List<String> nonIndexableKeys) {
+            this.packageName = packageName;
+            this.indexables = indexables;
+            this.nonIndexableKeys = nonIndexableKeys;
         }
     }
 
+    /**
+     * A private class to describe one row to be written into the Index database
+     */
+    private static class IndexRow {
+        public int docId;
+        public String locale;
+        public int rank;
+        public String title;
+        public String normalizedTitle;
+        public String summaryOn;
+        public String normalizedSummaryOn;
+        public String summaryOff;
+        public String normalizedSummaryOff;
+        public String entries;
+        public String keywords;
+        public String className;
+        public String screenTitle;
+        public String intentAction;
+        public String intentTargetPackage;
+        public String intentTargetClass;
+        public int iconResId;
+        public boolean enabled;
+        public String key;
+        public int userId;
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
     private final UpdateData mDataToProcess = new UpdateData();
+    private volatile IndexingStats mLastIndexingStats;
+    // Most recent first
+    private final List<String> mRecentQueries = new ArrayList<String>();
+    private boolean mRecentQueriesLoaded;
+    private final List<String> mPendingSavedQueries = new ArrayList<String>();
+    private final SearchIndexCache mSearchIndexCache = new SearchIndexCache(SELECT_COLUMNS,
+            MATCH_COLUMNS_PRIMARY, MATCH_COLUMNS_SECONDARY, MAX_SEARCH_RESULTS);
     private Context mContext;
     private final String mBaseAuthority;
 
@@ -230,78 +402,281 @@ public class Index {
         return mIsAvailable.get();
     }
 
+    /**
+     * @return the statistics of the last indexing pass or null if nothing has been indexed yet.
+     */
+    public IndexingStats getLastIndexingStats() {
+        return mLastIndexingStats;
+    }
+
     public Cursor search(String query) {
         final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
 
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+        // Search-as-you-type is served from memory, the database being only used for loading
+        // the cache (or if the query cannot be handled by the cache)
+        final Cursor cached = mSearchIndexCache.search(database, Locale.getDefault().toString(),
+                query);
+        if (cached != null) {
+            return cached;
+        }
 
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
+        return searchDatabase(database, query);
+    }
 
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+    /**
+     * Search the Index database without using the in-memory cache. The statement is constant
+     * (the query and locale being bound parameters) so it is only compiled once and then
+     * reused from the SQLite statement cache across keystrokes.
+     *
+     * Rows are scored in a single pass from their FTS matchinfo() and only the
+     * {@link #MAX_SEARCH_RESULTS} best ones are returned, most relevant first.
+     */
+    Cursor searchDatabase(SQLiteDatabase database, String query) {
+        final String locale = Locale.getDefault().toString();
+        final String match = buildSearchMatchStringForColumns(query, MATCH_COLUMNS_ALL);
 
-        return new MergeCursor(cursors);
+        final SearchScorer.TopRows topRows = new SearchScorer.TopRows(MAX_SEARCH_RESULTS);
+        final Cursor cursor = database.rawQuery(SEARCH_SQL, new String[] { match, locale });
+        try {
+            final int columnCount = SELECT_COLUMNS.length;
+            int order = 0;
+            while (cursor.moveToNext()) {
+                final Object[] values = new Object[columnCount];
+                for (int n = 0; n < columnCount; n++) {
+                    values[n] = SearchIndexCache.getValue(cursor, n);
+                }
+                final int rank = cursor.getInt(COLUMN_INDEX_RANK);
+                final double relevance = getRelevance(cursor.getBlob(columnCount));
+                topRows.add(new SearchScorer.ScoredRow(values,
+                        SearchScorer.blendWithRank(relevance, rank), rank, order++));
+            }
+        } finally {
+            cursor.close();
+        }
+        return topRows.toCursor(SELECT_COLUMNS);
+    }
+
+    /**
+     * Compute the BM25 relevance of a row from its matchinfo() (see {@link #MATCHINFO_FORMAT}).
+     */
+    private static double getRelevance(byte[] matchInfo) {
+        if (matchInfo == null) {
+            return 0;
+        }
+        final IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+        final int phraseCount = info.get(0);
+        final int columnCount = info.get(1);
+        final int rowCount = info.get(2);
+        final int avgLengthsOffset = 3;
+        final int lengthsOffset = avgLengthsOffset + columnCount;
+        final int hitsOffset = lengthsOffset + columnCount;
+
+        final int weightCount = Math.min(columnCount, INDEX_TABLE_COLUMN_WEIGHTS.length);
+        double relevance = 0;
+        for (int p = 0; p < phraseCount; p++) {
+            for (int c = 0; c < weightCount; c++) {
+                final float weight = INDEX_TABLE_COLUMN_WEIGHTS[c];
+                if (weight == 0) {
+                    continue;
+                }
+                final int hits = hitsOffset + 3 * (c + p * columnCount);
+                relevance += weight * SearchScorer.bm25(info.get(hits), info.get(hits + 2),
+                        rowCount, info.get(lengthsOffset + c), info.get(avgLengthsOffset + c));
+            }
+        }
+        return relevance;
     }
 
+    /**
+     * Get the saved queries starting with some query (most recent first). Suggestions are served
+     * from the in-memory list of recent queries, which is loaded once from the database.
+     */
     public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+        loadRecentQueriesIfNeeded();
+
+        final MatrixCursor cursor = new MatrixCursor(SUGGESTIONS_COLUMNS);
+        final boolean isEmptyQuery = TextUtils.isEmpty(query);
+        synchronized (mRecentQueries) {
+            final int count = mRecentQueries.size();
+            for (int n = 0; n < count && cursor.getCount() < MAX_PROPOSED_SUGGESTIONS; n++) {
+                final String recent = mRecentQueries.get(n);
+                // Same as a "LIKE 'query%'" clause: case insensitive prefix matching
+                if (isEmptyQuery || recent.regionMatches(true, 0, query, 0, query.length())) {
+                    cursor.addRow(new Object[] { recent });
+                }
+            }
+        }
+        return cursor;
     }
 
-    private String buildSuggestionsSQL(String query) {
+    private void loadRecentQueriesIfNeeded() {
+        synchronized (mRecentQueries) {
+            if (mRecentQueriesLoaded) {
+                return;
+            }
+        }
+
+        final List<String> saved = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().rawQuery(SAVED_QUERIES_SQL, null);
+            while (cursor.moveToNext()) {
+                saved.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Cannot load saved Search queries", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        synchronized (mRecentQueries) {
+            if (mRecentQueriesLoaded) {
+                return;
+            }
+            // Queries added before the loading are more recent than the saved ones
+            final int count = saved.size();
+            for (int n = 0; n < count && mRecentQueries.size() < MAX_SAVED_SEARCH_QUERY; n++) {
+                final String query = saved.get(n);
+                if (!mRecentQueries.contains(query)) {
+                    mRecentQueries.add(query);
+                }
+            }
+            mRecentQueriesLoaded = true;
+        }
+    }
+
+    private void addRecentQuery(String query) {
+        synchronized (mRecentQueries) {
+            mRecentQueries.remove(query);
+            mRecentQueries.add(0, query);
+            while (mRecentQueries.size() > MAX_SAVED_SEARCH_QUERY) {
+                mRecentQueries.remove(mRecentQueries.size() - 1);
+            }
+        }
+    }
+
+    private static String buildSearchSQL() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
+            sb.append(SELECT_COLUMNS[n]);
+            sb.append(", ");
+        }
+        sb.append("matchinfo(");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(", '");
+        sb.append(MATCHINFO_FORMAT);
+        sb.append("')");
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ? AND ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ? AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1");
+        return sb.toString();
+    }
+
+    private static String buildSavedQueriesSQL() {
         StringBuilder sb = new StringBuilder();
 
         sb.append("SELECT ");
         sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
         sb.append(" FROM ");
         sb.append(Tables.TABLE_SAVED_QUERIES);
+        sb.append(" ORDER BY rowId DESC");
+        sb.append(" LIMIT ");
+        sb.append(MAX_SAVED_SEARCH_QUERY);
 
+        return sb.toString();
+    }
+
+    /**
+     * Save a Search query. This returns immediately: the query is added to the in-memory
+     * suggestions and written later to the database, together with the other pending queries.
+     */
+    public void addSavedQuery(String query) {
         if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+            return;
         }
+        addRecentQuery(query);
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+        synchronized (mPendingSavedQueries) {
+            mPendingSavedQueries.add(query);
+            if (mPendingSavedQueries.size() > 1) {
+                // A SaveSearchQueryTask is already scheduled and will save this one too
+                return;
+            }
+        }
+        new SaveSearchQueryTask().execute();
+    }
 
-        return sb.toString();
+    /**
+     * Update the Index with the data of all the well known SearchIndexablesProviders.
+     *
+     * The providers are queried (and their resources parsed) in parallel by the indexing workers,
+     * so this returns immediately.
+     */
+    public void update() {
+        synchronized (mDataToProcess) {
+            mDataToProcess.fetchRemoteProviders = true;
+        }
+        updateInternal();
+    }
+
+    private static synchronized ExecutorService getIndexingExecutor() {
+        if (sIndexingExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    INDEXING_WORKER_COUNT, INDEXING_WORKER_COUNT,
+                    INDEXING_WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread("SearchIndexer #" + mCount.getAndIncrement()) {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            };
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sIndexingExecutor = executor;
+        }
+        return sIndexingExecutor;
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
+    private static <T> T getResult(Future<T> future) {
         try {
-            return task.get();
+            return future.get();
         } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
+            Log.e(LOG_TAG, "Interrupted while indexing", e);
+            Thread.currentThread().interrupt();
         } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
+            Log.e(LOG_TAG, "Cannot get indexing result", e.getCause());
         }
+        return null;
     }
 
-    public void update() {
+    private List<RemoteProviderData> fetchRemoteProviders() {
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
         List<ResolveInfo> list =
                 mContext.getPackageManager().queryIntentContentProviders(intent, 0);
 
+        final ExecutorService executor = getIndexingExecutor();
+        final List<Future<RemoteProviderData>> futures =
+                new ArrayList<Future<RemoteProviderData>>();
+
         final int size = list.size();
         for (int n = 0; n < size; n++) {
             final ResolveInfo info = list.get(n);
@@ -311,42 +686,55 @@ public class Index {
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
 
-            addIndexablesFromRemoteProvider(packageName, authority);
-            addNonIndexablesKeysFromRemoteProvider(packageName, authority);
+            futures.add(executor.submit(new Callable<RemoteProviderData>() {
+                @Override
+                public RemoteProviderData call() {
+                    return new RemoteProviderData(packageName,
+                            getIndexablesFromRemoteProvider(packageName, authority),
+                            getNonIndexablesKeysFromRemoteProvider(packageName, authority));
+                }
+            }));
         }
 
-        updateInternal();
+        final int count = futures.size();
+        final List<RemoteProviderData> result = new ArrayList<RemoteProviderData>(count);
+        for (int n = 0; n < count; n++) {
+            final RemoteProviderData data = getResult(futures.get(n));
+            if (data != null) {
+                result.add(data);
+            }
+        }
+        return result;
     }
 
-    private boolean addIndexablesFromRemoteProvider(String packageName, String authority) {
+    /**
+     * @return the indexable data of a remote provider or null if its context cannot be created
+     */
+    private List<SearchIndexableData> getIndexablesFromRemoteProvider(String packageName,
+            String authority) {
         try {
             final int baseRank = Ranking.getBaseRankForAuthority(authority);
 
             final Context context = mBaseAuthority.equals(authority) ?
                     mContext : mContext.createPackageContext(packageName, 0);
 
+            final List<SearchIndexableData> result = new ArrayList<SearchIndexableData>();
+
             final Uri uriForResources = buildUriForXmlResources(authority);
             addIndexablesForXmlResourceUri(context, packageName, uriForResources,
-                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank);
+                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank, result);
 
             final Uri uriForRawData = buildUriForRawData(authority);
             addIndexablesForRawDataUri(context, packageName, uriForRawData,
-                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
-            return true;
+                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank, result);
+            return result;
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
                     + Log.getStackTraceString(e));
-            return false;
+            return null;
         }
     }
 
-    private void addNonIndexablesKeysFromRemoteProvider(String packageName,
-                                                        String authority) {
-        final List<String> keys =
-                getNonIndexablesKeysFromRemoteProvider(packageName, authority);
-        addNonIndexableKeys(packageName, keys);
-    }
-
     private List<String> getNonIndexablesKeysFromRemoteProvider(String packageName,
                                                                 String authority) {
         try {
@@ -455,7 +843,12 @@ public class Index {
     }
 
     private void updateFromRemoteProvider(String packageName, String authority) {
-        if (addIndexablesFromRemoteProvider(packageName, authority)) {
+        final List<SearchIndexableData> indexables =
+                getIndexablesFromRemoteProvider(packageName, authority);
+        if (indexables != null) {
+            synchronized (mDataToProcess) {
+                mDataToProcess.dataToUpdate.addAll(indexables);
+            }
             updateInternal();
         }
     }
@@ -528,7 +921,7 @@ public class Index {
     }
 
     private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> result) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -566,7 +959,7 @@ public class Index {
                     sir.intentTargetPackage = targetPackage;
                     sir.intentTargetClass = targetClass;
 
-                    addIndexableData(sir);
+                    result.add(sir);
                 }
             }
         } finally {
@@ -575,7 +968,7 @@ public class Index {
     }
 
     private void addIndexablesForRawDataUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> result) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -629,7 +1022,7 @@ public class Index {
                     data.key = key;
                     data.userId = userId;
 
-                    addIndexableData(data);
+                    result.add(data);
                 }
             }
         } finally {
@@ -637,80 +1030,93 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
+    private static String buildSearchMatchStringForColumns(String query, String[] columnNames) {
+        final String value = query + "*";
+        final int count = columnNames.length;
+        StringBuilder sb = new StringBuilder(count * (value.length() + 32));
+        for (int n = 0; n < count; n++) {
+            sb.append(columnNames[n]);
+            sb.append(":");
+            sb.append(value);
+            if (n < count - 1) {
+                sb.append(" OR ");
+            }
         }
         return sb.toString();
     }
 
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("SELECT ");
-        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
-            sb.append(SELECT_COLUMNS[n]);
-            if (n < SELECT_COLUMNS.length - 1) {
+    private static String buildInsertIndexRowSQL() {
+        final StringBuilder sb = new StringBuilder("INSERT OR REPLACE INTO ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" (");
+        final int count = INSERT_COLUMNS.length;
+        for (int n = 0; n < count; n++) {
+            sb.append(INSERT_COLUMNS[n]);
+            if (n < count - 1) {
                 sb.append(", ");
             }
         }
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_PREFS_INDEX);
-        sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
-
-        return sb.toString();
-    }
-
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
-        sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
-        sb.append(" AND ");
-        sb.append(IndexColumns.ENABLED);
-        sb.append(" = 1");
-        return sb.toString();
-    }
-
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
-        final String value = query + "*";
-        StringBuilder sb = new StringBuilder();
-        final int count = columnNames.length;
+        sb.append(") VALUES (");
         for (int n = 0; n < count; n++) {
-            sb.append(columnNames[n]);
-            sb.append(":");
-            sb.append(value);
+            sb.append('?');
             if (n < count - 1) {
-                sb.append(" OR ");
+                sb.append(", ");
             }
         }
+        sb.append(")");
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void insertIndexRow(SQLiteStatement statement, IndexRow row) {
+        statement.clearBindings();
+        statement.bindLong(1, row.docId);
+        bindStringOrNull(statement, 2, row.locale);
+        statement.bindLong(3, row.rank);
+        bindStringOrNull(statement, 4, row.title);
+        bindStringOrNull(statement, 5, row.normalizedTitle);
+        bindStringOrNull(statement, 6, row.summaryOn);
+        bindStringOrNull(statement, 7, row.normalizedSummaryOn);
+        bindStringOrNull(statement, 8, row.summaryOff);
+        bindStringOrNull(statement, 9, row.normalizedSummaryOff);
+        bindStringOrNull(statement, 10, row.entries);
+        bindStringOrNull(statement, 11, row.keywords);
+        bindStringOrNull(statement, 12, row.className);
+        bindStringOrNull(statement, 13, row.screenTitle);
+        bindStringOrNull(statement, 14, row.intentAction);
+        bindStringOrNull(statement, 15, row.intentTargetPackage);
+        bindStringOrNull(statement, 16, row.intentTargetClass);
+        statement.bindLong(17, row.iconResId);
+        statement.bindLong(18, row.enabled ? 1 : 0);
+        bindStringOrNull(statement, 19, row.key);
+        statement.bindLong(20, row.userId);
+        statement.executeInsert();
+    }
+
+    private void indexOneSearchIndexableData(List<IndexRow> rows, String localeStr,
             SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<IndexRow> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -743,7 +1149,7 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(List<IndexRow> rows, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -759,7 +1165,7 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
@@ -785,7 +1191,7 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
             }
         }
@@ -811,7 +1217,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<IndexRow> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -851,7 +1257,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -883,7 +1289,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -895,7 +1301,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -911,7 +1317,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<IndexRow> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -936,7 +1342,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -972,7 +1378,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -980,7 +1386,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<IndexRow> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -995,7 +1401,7 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1014,7 +1420,7 @@ public class Index {
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(List<IndexRow> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1032,29 +1438,29 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        IndexRow row = new IndexRow();
+        row.docId = docId;
+        row.locale = locale;
+        row.rank = rank;
+        row.title = updatedTitle;
+        row.normalizedTitle = normalizedTitle;
+        row.summaryOn = updatedSummaryOn;
+        row.normalizedSummaryOn = normalizedSummaryOn;
+        row.summaryOff = updatedSummaryOff;
+        row.normalizedSummaryOff = normalizedSummaryOff;
+        row.entries = entries;
+        row.keywords = keywords;
+        row.className = className;
+        row.screenTitle = screenTitle;
+        row.intentAction = intentAction;
+        row.intentTargetPackage = intentTargetPackage;
+        row.intentTargetClass = intentTargetClass;
+        row.iconResId = iconResId;
+        row.enabled = enabled;
+        row.key = key;
+        row.userId = userId;
+
+        rows.add(row);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1170,9 +1576,33 @@ public class Index {
 
             final boolean forceUpdate = params[0].forceUpdate;
 
+            final long current = System.currentTimeMillis();
+
             final SQLiteDatabase database = getWritableDatabase();
             final String localeStr = Locale.getDefault().toString();
 
+            final IndexingStats stats = new IndexingStats();
+            stats.locale = localeStr;
+            stats.forceUpdate = forceUpdate;
+
+            // Packages whose data is all in dataToUpdate, so that anything else indexed for them
+            // is stale. Only known when the providers are queried.
+            Set<String> fetchedPackages = null;
+            if (params[0].fetchRemoteProviders) {
+                final List<RemoteProviderData> providers = fetchRemoteProviders();
+                final int count = providers.size();
+                fetchedPackages = new HashSet<String>(count);
+                for (int n = 0; n < count; n++) {
+                    final RemoteProviderData data = providers.get(n);
+                    if (data.indexables != null) {
+                        dataToUpdate.addAll(data.indexables);
+                        fetchedPackages.add(data.packageName);
+                    }
+                    nonIndexableKeys.put(data.packageName, data.nonIndexableKeys);
+                }
+                stats.remoteProviders = count;
+            }
+
             try {
                 database.beginTransaction();
                 if (dataToDelete.size() > 0) {
@@ -1180,45 +1610,281 @@ public class Index {
                 }
                 if (dataToUpdate.size() > 0) {
                     processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                            forceUpdate, fetchedPackages, stats);
                 }
                 database.setTransactionSuccessful();
             } finally {
                 database.endTransaction();
+                mSearchIndexCache.invalidate();
             }
 
+            stats.durationMillis = System.currentTimeMillis() - current;
+            mLastIndexingStats = stats;
+            Log.d(LOG_TAG, "Indexing stats: " + stats);
+
             return null;
         }
 
-        private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
-                List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
-
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
+        private boolean processDataToUpdate(SQLiteDatabase database, final String localeStr,
+                List<SearchIndexableData> dataToUpdate,
+                final Map<String, List<String>> nonIndexableKeys, boolean forceUpdate,
+                Set<String> fetchedPackages, IndexingStats stats) {
 
             boolean result = false;
             final long current = System.currentTimeMillis();
 
+            // A forced update is always done: it is used for data that may have changed at
+            // runtime (enabled state, dynamic raw data) and that a package version cannot describe.
+            final Map<String, Fingerprint> indexedFingerprints = forceUpdate ?
+                    new HashMap<String, Fingerprint>() : getFingerprints(database, localeStr);
+            final Map<String, String> packageVersions = new HashMap<String, String>();
+
             final int count = dataToUpdate.size();
+            final List<SearchIndexableData> changedData = new ArrayList<SearchIndexableData>(count);
+            final List<String> changedKeys = new ArrayList<String>(count);
+            final List<String> changedFingerprints = new ArrayList<String>(count);
+
+            final String[] keys = new String[count];
+            for (int n = 0; n < count; n++) {
+                keys[n] = getFingerprintKey(dataToUpdate.get(n));
+            }
+
+            // Drop the fingerprints of the data that fetched packages no longer provide. Their
+            // classes are rebuilt, as the rows of a class cannot be told apart.
+            final Set<String> staleClassNames = new HashSet<String>();
+            if (!forceUpdate && fetchedPackages != null) {
+                final Set<String> keySet = new HashSet<String>(Arrays.asList(keys));
+                for (Map.Entry<String, Fingerprint> entry : indexedFingerprints.entrySet()) {
+                    final String key = entry.getKey();
+                    if (keySet.contains(key) || !fetchedPackages.contains(getPackageOfKey(key))) {
+                        continue;
+                    }
+                    database.delete(Tables.TABLE_INDEX_FINGERPRINTS,
+                            FingerprintsColumns.LOCALE + " = ? AND " +
+                                    FingerprintsColumns.DATA_KEY + " = ?",
+                            new String[] { localeStr, key });
+                    final String className = entry.getValue().className;
+                    if (!TextUtils.isEmpty(className)) {
+                        staleClassNames.add(className);
+                    }
+                    stats.dataRemoved++;
+                }
+            }
+
+            final String[] fingerprints = new String[count];
+            final boolean[] changed = new boolean[count];
+            // The rows of a resource can only be deleted with all the rows of its class, so all
+            // the data of such a class is rebuilt, raw data included.
+            final Set<String> rebuiltClassNames = new HashSet<String>(staleClassNames);
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+                fingerprints[n] = forceUpdate ? null :
+                        computeFingerprint(data, nonIndexableKeys, packageVersions);
+
+                final Fingerprint indexed = indexedFingerprints.get(keys[n]);
+                changed[n] = indexed == null || !indexed.value.equals(fingerprints[n]);
+                if (changed[n] && data instanceof SearchIndexableResource &&
+                        !TextUtils.isEmpty(data.className)) {
+                    rebuiltClassNames.add(data.className);
                 }
             }
 
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData data = dataToUpdate.get(n);
+                if (!changed[n] && !rebuiltClassNames.contains(data.className)) {
+                    final Fingerprint indexed = indexedFingerprints.get(keys[n]);
+                    stats.dataReused++;
+                    stats.rowsReused += indexed.rowCount;
+                    continue;
+                }
+                changedData.add(data);
+                changedKeys.add(keys[n]);
+                changedFingerprints.add(fingerprints[n]);
+            }
+
+            final int changedCount = changedData.size();
+
+            // Remove the rows of the resources that are going to be rebuilt, so that preferences
+            // removed from a resource do not stay in the Index. Raw data are replaced by DocID.
+            if (!forceUpdate) {
+                for (String className : rebuiltClassNames) {
+                    database.delete(Tables.TABLE_PREFS_INDEX,
+                            IndexColumns.CLASS_NAME + " = ? AND " +
+                                    IndexColumns.LOCALE + " = ?",
+                            new String[] { className, localeStr });
+                }
+            }
+
+            // Parsing is fanned out to the indexing workers while this thread, the only writer,
+            // inserts the rows in submission order as soon as they are available.
+            final ExecutorService executor = getIndexingExecutor();
+            final List<Future<List<IndexRow>>> futures =
+                    new ArrayList<Future<List<IndexRow>>>(changedCount);
+            for (int n = 0; n < changedCount; n++) {
+                final SearchIndexableData data = changedData.get(n);
+                futures.add(executor.submit(new Callable<List<IndexRow>>() {
+                    @Override
+                    public List<IndexRow> call() {
+                        final List<IndexRow> rows = new ArrayList<IndexRow>();
+                        try {
+                            indexOneSearchIndexableData(rows, localeStr, data, nonIndexableKeys);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "Cannot index: " + data.className +
+                                    " for locale: " + localeStr, e);
+                            return null;
+                        }
+                        return rows;
+                    }
+                }));
+            }
+
+            final SQLiteStatement statement = database.compileStatement(INSERT_INDEX_ROW_SQL);
+            try {
+                for (int n = 0; n < changedCount; n++) {
+                    final List<IndexRow> rows = getResult(futures.get(n));
+                    if (rows == null) {
+                        continue;
+                    }
+                    final int rowCount = rows.size();
+                    for (int i = 0; i < rowCount; i++) {
+                        insertIndexRow(statement, rows.get(i));
+                    }
+                    stats.dataRebuilt++;
+                    stats.rowsRebuilt += rowCount;
+
+                    final String fingerprint = changedFingerprints.get(n);
+                    if (fingerprint != null) {
+                        saveFingerprint(database, localeStr, changedData.get(n).className,
+                                changedKeys.get(n), fingerprint, rowCount);
+                    }
+                }
+            } finally {
+                statement.close();
+            }
+
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
                     (now - current) + " millis");
             return result;
         }
 
+        private Map<String, Fingerprint> getFingerprints(SQLiteDatabase database, String locale) {
+            final Map<String, Fingerprint> result = new HashMap<String, Fingerprint>();
+            Cursor cursor = null;
+            try {
+                cursor = database.query(Tables.TABLE_INDEX_FINGERPRINTS,
+                        new String[] {
+                                FingerprintsColumns.DATA_KEY,
+                                FingerprintsColumns.CLASS_NAME,
+                                FingerprintsColumns.FINGERPRINT,
+                                FingerprintsColumns.ROW_COUNT },
+                        FingerprintsColumns.LOCALE + " = ?", new String[] { locale },
+                        null, null, null);
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0),
+                            new Fingerprint(cursor.getString(1), cursor.getString(2),
+                                    cursor.getInt(3)));
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return result;
+        }
+
+        private void saveFingerprint(SQLiteDatabase database, String locale, String className,
+                String key, String fingerprint, int rowCount) {
+            final ContentValues values = new ContentValues();
+            values.put(FingerprintsColumns.LOCALE, locale);
+            values.put(FingerprintsColumns.CLASS_NAME, className);
+            values.put(FingerprintsColumns.DATA_KEY, key);
+            values.put(FingerprintsColumns.FINGERPRINT, fingerprint);
+            values.put(FingerprintsColumns.ROW_COUNT, rowCount);
+
+            database.replaceOrThrow(Tables.TABLE_INDEX_FINGERPRINTS, null, values);
+        }
+
+        private String getFingerprintKey(SearchIndexableData data) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(data.packageName);
+            sb.append('/');
+            sb.append(data.className);
+            if (data instanceof SearchIndexableResource) {
+                sb.append("/res/");
+                sb.append(((SearchIndexableResource) data).xmlResId);
+            } else if (data instanceof SearchIndexableRaw) {
+                final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                sb.append("/raw/");
+                sb.append(raw.key);
+                sb.append('/');
+                sb.append(raw.title);
+                sb.append('/');
+                sb.append(raw.screenTitle);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return the package name a key returned by {@link #getFingerprintKey} starts with
+         */
+        private String getPackageOfKey(String key) {
+            return key.substring(0, key.indexOf('/'));
+        }
+
+        /**
+         * Compute the fingerprint of some indexable data. The version of the package providing
+         * the data is used as a resource cannot change without its package being updated.
+         *
+         * @return the fingerprint or null if it cannot be computed
+         */
+        private String computeFingerprint(SearchIndexableData data,
+                Map<String, List<String>> nonIndexableKeys, Map<String, String> packageVersions) {
+            final String packageName = TextUtils.isEmpty(data.packageName) ?
+                    mContext.getPackageName() : data.packageName;
+
+            String packageVersion = packageVersions.get(packageName);
+            if (packageVersion == null) {
+                try {
+                    final PackageInfo info =
+                            mContext.getPackageManager().getPackageInfo(packageName, 0);
+                    // An OTA can replace a system package without changing its version, but
+                    // not without changing its APK.
+                    final File apk = new File(info.applicationInfo.sourceDir);
+                    packageVersion = info.versionCode + ":" + info.lastUpdateTime + ":" +
+                            info.applicationInfo.sourceDir + ":" + apk.lastModified() + ":" +
+                            apk.length();
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.w(LOG_TAG, "Cannot compute fingerprint for package: " + packageName);
+                    return null;
+                }
+                packageVersions.put(packageName, packageVersion);
+            }
+
+            final StringBuilder sb = new StringBuilder(packageVersion);
+            sb.append('/');
+            sb.append(data.rank);
+            sb.append('/');
+            sb.append(data.iconResId);
+            sb.append('/');
+            sb.append(data.enabled);
+            if (data instanceof SearchIndexableResource) {
+                final List<String> keys = nonIndexableKeys.get(data.packageName);
+                sb.append('/');
+                sb.append((keys != null) ? keys.hashCode() : 0);
+            } else if (data instanceof SearchIndexableRaw) {
+                final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+                final String content = raw.summaryOn + ENTRIES_SEPARATOR + raw.summaryOff +
+                        ENTRIES_SEPARATOR + raw.entries + ENTRIES_SEPARATOR + raw.keywords +
+                        ENTRIES_SEPARATOR + raw.intentAction + ENTRIES_SEPARATOR +
+                        raw.intentTargetPackage + ENTRIES_SEPARATOR + raw.intentTargetClass +
+                        ENTRIES_SEPARATOR + raw.userId;
+                sb.append('/');
+                sb.append(content.hashCode());
+            }
+            return sb.toString();
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1233,6 +1899,10 @@ public class Index {
                 }
                 if (!TextUtils.isEmpty(data.className)) {
                     delete(database, IndexColumns.CLASS_NAME, data.className);
+                    // Rows have been deleted for all locales, so their fingerprints are stale
+                    database.delete(Tables.TABLE_INDEX_FINGERPRINTS,
+                            FingerprintsColumns.CLASS_NAME + " = ?",
+                            new String[] { data.className });
                 } else  {
                     if (data instanceof SearchIndexableRaw) {
                         final SearchIndexableRaw raw = (SearchIndexableRaw) data;
@@ -1255,66 +1925,61 @@ public class Index {
 
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
-
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
-            Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
-            try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-            return result;
-        }
     }
 
     /**
-     * A basic AsyncTask for saving a Search query into the database
+     * A basic AsyncTask for saving the pending Search queries into the database
      */
-    private class SaveSearchQueryTask extends AsyncTask<String, Void, Long> {
+    private class SaveSearchQueryTask extends AsyncTask<Void, Void, Void> {
 
         @Override
-        protected Long doInBackground(String... params) {
-            final long now = new Date().getTime();
-
-            final ContentValues values = new ContentValues();
-            values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, params[0]);
-            values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
+        protected Void doInBackground(Void... params) {
+            final List<String> queries;
+            synchronized (mPendingSavedQueries) {
+                queries = new ArrayList<String>(mPendingSavedQueries);
+                mPendingSavedQueries.clear();
+            }
 
+            final long now = new Date().getTime();
             final SQLiteDatabase database = getWritableDatabase();
 
-            long lastInsertedRowId = -1;
             try {
-                // First, delete all saved queries that are the same
-                database.delete(Tables.TABLE_SAVED_QUERIES,
-                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
-                        new String[] { params[0] });
+                database.beginTransaction();
 
-                // Second, insert the saved query
-                lastInsertedRowId =
-                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+                long lastInsertedRowId = -1;
+                final int count = queries.size();
+                for (int n = 0; n < count; n++) {
+                    final String query = queries.get(n);
+
+                    // First, delete all saved queries that are the same
+                    database.delete(Tables.TABLE_SAVED_QUERIES,
+                            IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
+                            new String[] { query });
+
+                    // Second, insert the saved query
+                    final ContentValues values = new ContentValues();
+                    values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, query);
+                    values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
+                    lastInsertedRowId =
+                            database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
+                }
 
-                // Last, remove "old" saved queries
+                // Last, remove "old" saved queries, once for the whole batch
                 final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
                 if (delta > 0) {
-                    int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
+                    int deleted = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
                             new String[] { Long.toString(delta) });
-                    Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
+                    Log.d(LOG_TAG, "Deleted '" + deleted + "' saved Search query(ies)");
                 }
+
+                database.setTransactionSuccessful();
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+            } finally {
+                database.endTransaction();
             }
 
-            return lastInsertedRowId;
+            return null;
         }
     }
 }
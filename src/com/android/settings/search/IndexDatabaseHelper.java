@@ -21,6 +21,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
+import android.text.TextUtils;
 import android.util.Log;
 
 public class IndexDatabaseHelper extends SQLiteOpenHelper {
@@ -28,12 +29,13 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 116;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_INDEX_FINGERPRINTS = "index_fingerprints";
     }
 
     public interface IndexColumns {
@@ -68,46 +70,41 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TIME_STAMP = "timestamp";
     }
 
+    public interface FingerprintsColumns {
+        public static final String LOCALE = "locale";
+        public static final String CLASS_NAME = "class_name";
+        public static final String DATA_KEY = "data_key";
+        public static final String FINGERPRINT = "fingerprint";
+        public static final String ROW_COUNT = "row_count";
+    }
+
+    // The columns of the Index table, in their declaration order (as reported by matchinfo())
+    public static final String[] INDEX_TABLE_COLUMNS = new String[] {
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.ICON,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID
+    };
+
     private static final String CREATE_INDEX_TABLE =
             "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
                     "(" +
-                    IndexColumns.LOCALE +
-                    ", " +
-                    IndexColumns.DATA_RANK +
-                    ", " +
-                    IndexColumns.DATA_TITLE +
-                    ", " +
-                    IndexColumns.DATA_TITLE_NORMALIZED +
-                    ", " +
-                    IndexColumns.DATA_SUMMARY_ON +
-                    ", " +
-                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED +
-                    ", " +
-                    IndexColumns.DATA_SUMMARY_OFF +
-                    ", " +
-                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED +
-                    ", " +
-                    IndexColumns.DATA_ENTRIES +
-                    ", " +
-                    IndexColumns.DATA_KEYWORDS +
-                    ", " +
-                    IndexColumns.SCREEN_TITLE +
-                    ", " +
-                    IndexColumns.CLASS_NAME +
-                    ", " +
-                    IndexColumns.ICON +
-                    ", " +
-                    IndexColumns.INTENT_ACTION +
-                    ", " +
-                    IndexColumns.INTENT_TARGET_PACKAGE +
-                    ", " +
-                    IndexColumns.INTENT_TARGET_CLASS +
-                    ", " +
-                    IndexColumns.ENABLED +
-                    ", " +
-                    IndexColumns.DATA_KEY_REF +
-                    ", " +
-                    IndexColumns.USER_ID +
+                    TextUtils.join(", ", INDEX_TABLE_COLUMNS) +
                     ");";
 
     private static final String CREATE_META_TABLE =
@@ -124,10 +121,31 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_INDEX_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_INDEX_FINGERPRINTS +
+                    "(" +
+                    FingerprintsColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    FingerprintsColumns.CLASS_NAME + " TEXT" +
+                    ", " +
+                    FingerprintsColumns.DATA_KEY + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintsColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintsColumns.ROW_COUNT + " INTEGER" +
+                    ", " +
+                    "UNIQUE (" + FingerprintsColumns.LOCALE + ", " +
+                            FingerprintsColumns.DATA_KEY + ")" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
 
+    private static final String UPDATE_BUILD_VERSION =
+            "UPDATE " + Tables.TABLE_META_INDEX +
+                    " SET " + MetaColumns.BUILD + " = '" + Build.VERSION.INCREMENTAL + "';";
+
     private static final String SELECT_BUILD_VERSION =
             "SELECT " + MetaColumns.BUILD + " FROM " + Tables.TABLE_META_INDEX + " LIMIT 1;";
 
@@ -153,6 +171,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_INDEX_FINGERPRINTS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -164,9 +183,11 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            // No need to drop the Index: every indexed resource carries a fingerprint of the
+            // build and package version it was built from, so it is re-indexed on its next
+            // update.
+            Log.i(TAG, "Build-version changed, Index will be incrementally updated");
+            db.execSQL(UPDATE_BUILD_VERSION);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -219,5 +240,6 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_INDEX_FINGERPRINTS);
     }
 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * A memory resident copy of the enabled rows of the Index for one locale.
+ *
+ * Rows are kept ordered by data rank and each searchable column group (primary and secondary)
+ * is described by a sorted array of tokens, so that a search-as-you-type query is only a few
+ * binary searches. Matching rows are then scored by {@link SearchScorer} the same way the
+ * database results are. The copy is loaded lazily from the database and dropped on
+ * invalidate().
+ */
+final class SearchIndexCache {
+
+    private static final String LOG_TAG = "SearchIndexCache";
+
+    /**
+     * An immutable snapshot of the Index for one locale
+     */
+    private static class Snapshot {
+        public final String locale;
+        // Values of the selected columns, ordered by data rank
+        public final Object[][] rows;
+        public final int[] ranks;
+        // Tokens of each searchable column (primary then secondary ones) of each row
+        public final String[][][] rowTokens;
+        public final float[] avgLengths;
+        public final String[] primaryTokens;
+        public final int[][] primaryRows;
+        public final String[] secondaryTokens;
+        public final int[][] secondaryRows;
+
+        public Snapshot(String locale, Object[][] rows, int[] ranks,
+                String[][][] rowTokens, float[] avgLengths,
+                String[] primaryTokens, int[][] primaryRows,
+                String[] secondaryTokens, int[][] secondaryRows) {
+            this.locale = locale;
+            this.rows = rows;
+            this.ranks = ranks;
+            this.rowTokens = rowTokens;
+            this.avgLengths = avgLengths;
+            this.primaryTokens = primaryTokens;
+            this.primaryRows = primaryRows;
+            this.secondaryTokens = secondaryTokens;
+            this.secondaryRows = secondaryRows;
+        }
+    }
+
+    private final String[] mSelectColumns;
+    private final String[] mPrimaryColumns;
+    private final String[] mSecondaryColumns;
+    private final float[] mColumnWeights;
+    private final int mRankColumn;
+    private final int mMaxResults;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private Snapshot mSnapshot;
+    // Guarded by mLock. Incremented on each invalidation so that a snapshot loaded while the
+    // Index was updated is never kept.
+    private int mGeneration;
+
+    public SearchIndexCache(String[] selectColumns, String[] primaryColumns,
+            String[] secondaryColumns, int maxResults) {
+        mSelectColumns = selectColumns;
+        mPrimaryColumns = primaryColumns;
+        mSecondaryColumns = secondaryColumns;
+        mMaxResults = maxResults;
+
+        final float[] primaryWeights = SearchScorer.getColumnWeights(primaryColumns);
+        final float[] secondaryWeights = SearchScorer.getColumnWeights(secondaryColumns);
+        mColumnWeights = new float[primaryWeights.length + secondaryWeights.length];
+        System.arraycopy(primaryWeights, 0, mColumnWeights, 0, primaryWeights.length);
+        System.arraycopy(secondaryWeights, 0, mColumnWeights, primaryWeights.length,
+                secondaryWeights.length);
+
+        mRankColumn = Arrays.asList(selectColumns).indexOf(IndexColumns.DATA_RANK);
+    }
+
+    /**
+     * Drop the cached rows. They will be reloaded from the database by the next search.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * Search the cached rows, loading them first if needed.
+     *
+     * @return a cursor with the selected columns of the best results (most relevant first), or
+     *         null if the query cannot be served from the cache.
+     */
+    public Cursor search(SQLiteDatabase database, String locale, String query) {
+        final String[] terms = tokenize(query);
+        if (terms.length == 0) {
+            return null;
+        }
+
+        Snapshot snapshot;
+        int generation;
+        synchronized (mLock) {
+            snapshot = mSnapshot;
+            generation = mGeneration;
+        }
+
+        if (snapshot == null || !snapshot.locale.equals(locale)) {
+            snapshot = load(database, locale);
+            if (snapshot == null) {
+                return null;
+            }
+            synchronized (mLock) {
+                if (generation == mGeneration) {
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+
+        final int termCount = terms.length;
+        final int[] primaryDocFreqs = new int[termCount];
+        final int[] secondaryDocFreqs = new int[termCount];
+        final BitSet matched = match(snapshot.primaryTokens, snapshot.primaryRows, terms,
+                primaryDocFreqs);
+        matched.or(match(snapshot.secondaryTokens, snapshot.secondaryRows, terms,
+                secondaryDocFreqs));
+
+        final int rowCount = snapshot.rows.length;
+        final int primaryCount = mPrimaryColumns.length;
+        final int columnCount = mColumnWeights.length;
+
+        final SearchScorer.TopRows topRows = new SearchScorer.TopRows(mMaxResults);
+        for (int row = matched.nextSetBit(0); row >= 0; row = matched.nextSetBit(row + 1)) {
+            final String[][] columnTokens = snapshot.rowTokens[row];
+            double relevance = 0;
+            for (int c = 0; c < columnCount; c++) {
+                final String[] tokens = columnTokens[c];
+                final int[] docFreqs = (c < primaryCount) ? primaryDocFreqs : secondaryDocFreqs;
+                for (int t = 0; t < termCount; t++) {
+                    final int tf = countPrefixHits(tokens, terms[t]);
+                    relevance += mColumnWeights[c] * SearchScorer.bm25(tf, docFreqs[t],
+                            rowCount, tokens.length, snapshot.avgLengths[c]);
+                }
+            }
+            final int rank = snapshot.ranks[row];
+            topRows.add(new SearchScorer.ScoredRow(snapshot.rows[row],
+                    SearchScorer.blendWithRank(relevance, rank), rank, row));
+        }
+        return topRows.toCursor(mSelectColumns);
+    }
+
+    private static int countPrefixHits(String[] tokens, String term) {
+        int count = 0;
+        for (String token : tokens) {
+            if (token.startsWith(term)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param docFreqs filled with the number of rows matching each term
+     * @return the rows having, for every term, a token starting with that term
+     */
+    private static BitSet match(String[] tokens, int[][] tokenRows, String[] terms,
+            int[] docFreqs) {
+        BitSet result = null;
+        for (int t = 0; t < terms.length; t++) {
+            final String term = terms[t];
+            final BitSet termRows = new BitSet();
+            int index = Arrays.binarySearch(tokens, term);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            while (index < tokens.length && tokens[index].startsWith(term)) {
+                final int[] rows = tokenRows[index];
+                for (int row : rows) {
+                    termRows.set(row);
+                }
+                index++;
+            }
+            docFreqs[t] = termRows.cardinality();
+            if (result == null) {
+                result = termRows;
+            } else {
+                result.and(termRows);
+            }
+        }
+        return result;
+    }
+
+    private Snapshot load(SQLiteDatabase database, String locale) {
+        final long current = System.currentTimeMillis();
+
+        final int selectCount = mSelectColumns.length;
+        final int primaryCount = mPrimaryColumns.length;
+        final int secondaryCount = mSecondaryColumns.length;
+
+        final String[] columns = new String[selectCount + primaryCount + secondaryCount];
+        System.arraycopy(mSelectColumns, 0, columns, 0, selectCount);
+        System.arraycopy(mPrimaryColumns, 0, columns, selectCount, primaryCount);
+        System.arraycopy(mSecondaryColumns, 0, columns, selectCount + primaryCount,
+                secondaryCount);
+
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final List<String[][]> rowTokens = new ArrayList<String[][]>();
+        final long[] totalLengths = new long[primaryCount + secondaryCount];
+        final Map<String, List<Integer>> primaryPostings = new HashMap<String, List<Integer>>();
+        final Map<String, List<Integer>> secondaryPostings =
+                new HashMap<String, List<Integer>>();
+        final Set<String> tokens = new HashSet<String>();
+        final List<String> columnTokens = new ArrayList<String>();
+
+        Cursor cursor = null;
+        try {
+            cursor = database.query(Tables.TABLE_PREFS_INDEX, columns,
+                    IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                    new String[] { locale }, null, null, IndexColumns.DATA_RANK);
+
+            while (cursor.moveToNext()) {
+                final int rowIndex = rows.size();
+
+                final Object[] row = new Object[selectCount];
+                for (int n = 0; n < selectCount; n++) {
+                    row[n] = getValue(cursor, n);
+                }
+                rows.add(row);
+
+                final String[][] rowColumnTokens = new String[primaryCount + secondaryCount][];
+                tokens.clear();
+                for (int n = 0; n < primaryCount + secondaryCount; n++) {
+                    if (n == primaryCount) {
+                        addPostings(primaryPostings, tokens, rowIndex);
+                        tokens.clear();
+                    }
+                    columnTokens.clear();
+                    tokenize(cursor.getString(selectCount + n), columnTokens);
+                    rowColumnTokens[n] = columnTokens.toArray(new String[columnTokens.size()]);
+                    totalLengths[n] += columnTokens.size();
+                    tokens.addAll(columnTokens);
+                }
+                addPostings(secondaryPostings, tokens, rowIndex);
+                rowTokens.add(rowColumnTokens);
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Cannot load the Index for locale: " + locale, e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        final int rowCount = rows.size();
+        final int[] ranks = new int[rowCount];
+        for (int n = 0; n < rowCount; n++) {
+            final Object rank = (mRankColumn >= 0) ? rows.get(n)[mRankColumn] : null;
+            ranks[n] = (rank instanceof Number) ? ((Number) rank).intValue() : 0;
+        }
+        final float[] avgLengths = new float[totalLengths.length];
+        for (int n = 0; n < totalLengths.length; n++) {
+            avgLengths[n] = (rowCount > 0) ? (float) totalLengths[n] / rowCount : 0;
+        }
+
+        final String[] primaryTokens = getSortedTokens(primaryPostings);
+        final String[] secondaryTokens = getSortedTokens(secondaryPostings);
+        final Snapshot snapshot = new Snapshot(locale, rows.toArray(new Object[rowCount][]),
+                ranks, rowTokens.toArray(new String[rowCount][][]), avgLengths,
+                primaryTokens, getTokenRows(primaryTokens, primaryPostings),
+                secondaryTokens, getTokenRows(secondaryTokens, secondaryPostings));
+
+        Log.d(LOG_TAG, "Loading " + rows.size() + " rows for locale '" + locale + "' took " +
+                (System.currentTimeMillis() - current) + " millis");
+        return snapshot;
+    }
+
+    static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            default:
+                return null;
+        }
+    }
+
+    private static void addPostings(Map<String, List<Integer>> postings, Set<String> tokens,
+            int rowIndex) {
+        for (String token : tokens) {
+            List<Integer> rows = postings.get(token);
+            if (rows == null) {
+                rows = new ArrayList<Integer>(1);
+                postings.put(token, rows);
+            }
+            rows.add(rowIndex);
+        }
+    }
+
+    private static String[] getSortedTokens(Map<String, List<Integer>> postings) {
+        final String[] tokens = postings.keySet().toArray(new String[postings.size()]);
+        Arrays.sort(tokens);
+        return tokens;
+    }
+
+    private static int[][] getTokenRows(String[] tokens, Map<String, List<Integer>> postings) {
+        final int[][] result = new int[tokens.length][];
+        for (int n = 0; n < tokens.length; n++) {
+            final List<Integer> rows = postings.get(tokens[n]);
+            final int count = rows.size();
+            final int[] array = new int[count];
+            for (int i = 0; i < count; i++) {
+                array[i] = rows.get(i);
+            }
+            result[n] = array;
+        }
+        return result;
+    }
+
+    private static String[] tokenize(String text) {
+        final List<String> terms = new ArrayList<String>();
+        tokenize(text, terms);
+        return terms.toArray(new String[terms.size()]);
+    }
+
+    /**
+     * Split some text into lower case tokens of letters and digits, the same way the FTS
+     * tokenizer does for the Index.
+     */
+    private static void tokenize(String text, Collection<String> out) {
+        if (text == null) {
+            return;
+        }
+        final String lower = text.toLowerCase();
+        final int length = lower.length();
+        int start = -1;
+        for (int n = 0; n <= length; n++) {
+            final boolean isTokenChar = (n < length) && Character.isLetterOrDigit(lower.charAt(n));
+            if (isTokenChar) {
+                if (start < 0) {
+                    start = n;
+                }
+            } else if (start >= 0) {
+                out.add(lower.substring(start, n));
+                start = -1;
+            }
+        }
+    }
+}
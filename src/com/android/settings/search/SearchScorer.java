@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.MatrixCursor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+/**
+ * Relevance scoring of the Search results.
+ *
+ * The relevance of a row is a BM25 score summed over the searchable columns, each column having
+ * its own weight (a match in a title is worth more than a match in a summary). It is then
+ * blended with the static rank of the row coming from {@link Ranking}.
+ */
+final class SearchScorer {
+
+    // BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // How much the static rank lowers the relevance: rank 1 costs ~7%, rank 2048 ~43%
+    private static final double RANK_DAMPING = 0.1;
+
+    private static final HashMap<String, Float> sColumnWeights = new HashMap<String, Float>();
+
+    static {
+        sColumnWeights.put(IndexColumns.DATA_TITLE, 10f);
+        sColumnWeights.put(IndexColumns.DATA_TITLE_NORMALIZED, 10f);
+        sColumnWeights.put(IndexColumns.DATA_KEYWORDS, 5f);
+        sColumnWeights.put(IndexColumns.DATA_SUMMARY_ON, 1f);
+        sColumnWeights.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, 1f);
+        sColumnWeights.put(IndexColumns.DATA_SUMMARY_OFF, 1f);
+        sColumnWeights.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, 1f);
+        sColumnWeights.put(IndexColumns.DATA_ENTRIES, 1f);
+    }
+
+    private SearchScorer() {
+    }
+
+    /**
+     * @return the weight of a column, 0 for the columns that should not count for relevance
+     */
+    public static float getColumnWeight(String column) {
+        final Float weight = sColumnWeights.get(column);
+        return (weight != null) ? weight : 0f;
+    }
+
+    public static float[] getColumnWeights(String[] columns) {
+        final float[] result = new float[columns.length];
+        for (int n = 0; n < columns.length; n++) {
+            result[n] = getColumnWeight(columns[n]);
+        }
+        return result;
+    }
+
+    /**
+     * @param tf number of hits of the term in the column of the row
+     * @param df number of rows having a hit of the term in the column
+     * @param rowCount number of rows
+     * @param length number of tokens of the column of the row
+     * @param avgLength average number of tokens of the column
+     */
+    public static double bm25(int tf, int df, int rowCount, float length, float avgLength) {
+        if (tf <= 0) {
+            return 0;
+        }
+        final double idf = Math.log(1 + (rowCount - df + 0.5) / (df + 0.5));
+        final double norm = (avgLength > 0) ? (1 - B + B * length / avgLength) : 1;
+        return idf * (tf * (K1 + 1)) / (tf + K1 * norm);
+    }
+
+    /**
+     * Blend the relevance of a row with its static rank (lower is better).
+     */
+    public static double blendWithRank(double relevance, int rank) {
+        return relevance / (1 + RANK_DAMPING * Math.log1p(Math.max(rank, 0)));
+    }
+
+    /**
+     * A row of results with its score
+     */
+    public static class ScoredRow {
+        public final Object[] values;
+        public final double score;
+        public final int rank;
+        public final int order;
+
+        public ScoredRow(Object[] values, double score, int rank, int order) {
+            this.values = values;
+            this.score = score;
+            this.rank = rank;
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<ScoredRow> BEST_FIRST = new Comparator<ScoredRow>() {
+        @Override
+        public int compare(ScoredRow lhs, ScoredRow rhs) {
+            if (lhs.score != rhs.score) {
+                return (lhs.score > rhs.score) ? -1 : 1;
+            }
+            if (lhs.rank != rhs.rank) {
+                return (lhs.rank < rhs.rank) ? -1 : 1;
+            }
+            return (lhs.order < rhs.order) ? -1 : ((lhs.order == rhs.order) ? 0 : 1);
+        }
+    };
+
+    /**
+     * Keep the K best rows without sorting all of them.
+     */
+    public static class TopRows {
+        private final int mMaxCount;
+        private final PriorityQueue<ScoredRow> mWorstFirst;
+
+        public TopRows(int maxCount) {
+            mMaxCount = maxCount;
+            mWorstFirst = new PriorityQueue<ScoredRow>(maxCount,
+                    Collections.reverseOrder(BEST_FIRST));
+        }
+
+        public void add(ScoredRow row) {
+            if (mWorstFirst.size() < mMaxCount) {
+                mWorstFirst.add(row);
+            } else if (BEST_FIRST.compare(row, mWorstFirst.peek()) < 0) {
+                mWorstFirst.poll();
+                mWorstFirst.add(row);
+            }
+        }
+
+        public MatrixCursor toCursor(String[] columns) {
+            final List<ScoredRow> rows = new ArrayList<ScoredRow>(mWorstFirst);
+            Collections.sort(rows, BEST_FIRST);
+
+            final int count = rows.size();
+            final MatrixCursor cursor = new MatrixCursor(columns, count);
+            for (int n = 0; n < count; n++) {
+                cursor.addRow(rows.get(n).values);
+            }
+            return cursor;
+        }
+    }
+}
@@ -56,6 +56,16 @@ public class ChartNetworkSeriesView extends View {
 
     private NetworkStatsHistory mStats;
 
+    /**
+     * Bucket bounds and running totals of {@link #mStats}, so that paths can be
+     * generated without walking every bucket.  Rebuilt when stats are bound.
+     */
+    private long[] mBucketStarts;
+    private long[] mBucketEnds;
+    /** Total of the buckets before each index, one longer than the buckets. */
+    private long[] mCumulative;
+    private boolean mBucketsValid = false;
+
     private Path mPathStroke;
     private Path mPathFill;
     private Path mPathEstimate;
@@ -143,6 +153,7 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mBucketsValid = false;
         invalidatePath();
         invalidate();
     }
@@ -195,45 +206,52 @@ public class ChartNetworkSeriesView extends View {
         // TODO: count fractional data from first bucket crossing start;
         // currently it only accepts first full bucket.
 
-        long totalData = 0;
+        if (!mBucketsValid) {
+            generateBuckets();
+        }
 
-        NetworkStatsHistory.Entry entry = null;
+        long totalData = 0;
 
         final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
+        final int end = Math.min(mStats.getIndexAfter(mEnd), mBucketEnds.length - 1);
 
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
+        // skip until we find first stats on screen
+        int first = start;
+        while (first <= end && mHoriz.convertToPoint(mBucketEnds[first]) < 0) {
+            first++;
+        }
 
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
+        // Buckets ending in the same pixel column are drawn as a single segment
+        // to the end of the last one, the running total only grows so nothing
+        // visible is lost.  This keeps the path size bound by the view width.
+        int i = first;
+        while (i <= end) {
+            final float endX = mHoriz.convertToPoint(mBucketEnds[i]);
+            final long columnEnd = mHoriz.convertToValue((float) Math.floor(endX) + 1);
+            final int last = findLastBucketEndingBefore(i, end, columnEnd);
 
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
+            if (lastTime != mBucketStarts[i]) {
                 // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+                final float startX = mHoriz.convertToPoint(mBucketStarts[i]);
+                mPathStroke.lineTo(startX, lastY);
+                mPathFill.lineTo(startX, lastY);
             }
 
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
+            // always draw to end of the last bucket of the column
+            totalData = mCumulative[last + 1] - mCumulative[first];
+            final float lastEndX = mHoriz.convertToPoint(mBucketEnds[last]);
+            final float endY = mVert.convertToPoint(totalData);
+            mPathStroke.lineTo(lastEndX, endY);
+            mPathFill.lineTo(lastEndX, endY);
 
-            lastX = endX;
+            lastX = lastEndX;
             lastY = endY;
-            lastTime = endTime;
+            lastTime = mBucketEnds[last];
+            i = last + 1;
         }
 
+        NetworkStatsHistory.Entry entry = null;
+
         // when data falls short, extend to requested end time
         if (lastTime < mEndTime) {
             lastX = mHoriz.convertToPoint(mEndTime);
@@ -291,6 +309,41 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    private void generateBuckets() {
+        final int size = mStats.size();
+        if (mBucketEnds == null || mBucketEnds.length != size) {
+            mBucketStarts = new long[size];
+            mBucketEnds = new long[size];
+            mCumulative = new long[size + 1];
+        }
+
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < size; i++) {
+            entry = mStats.getValues(i, entry);
+            mBucketStarts[i] = entry.bucketStart;
+            mBucketEnds[i] = entry.bucketStart + entry.bucketDuration;
+            mCumulative[i + 1] = mCumulative[i] + entry.rxBytes + entry.txBytes;
+        }
+        mBucketsValid = true;
+    }
+
+    /**
+     * @return index of the last bucket in [from, to] ending before time, or from if none
+     */
+    private int findLastBucketEndingBefore(int from, int to, long time) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (mBucketEnds[mid] < time) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
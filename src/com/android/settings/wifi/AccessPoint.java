@@ -133,7 +133,7 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
+    static int getSecurity(ScanResult result) {
         if (result.capabilities.contains("WEP")) {
             return SECURITY_WEP;
         } else if (result.capabilities.contains("PSK")) {
@@ -363,6 +363,54 @@ class AccessPoint extends Preference {
         return false;
     }
 
+    /**
+     * Take the latest saved configuration of the network, or null if it is no longer saved.
+     *
+     * @return whether the network id changed, which changes the order of the access points
+     */
+    boolean updateConfig(WifiConfiguration config) {
+        if (config == mConfig) {
+            return false;
+        }
+        final int oldNetworkId = networkId;
+        if (config != null) {
+            loadConfig(config);
+        } else {
+            mConfig = null;
+            networkId = WifiConfiguration.INVALID_NETWORK_ID;
+        }
+        refresh();
+        return networkId != oldNetworkId;
+    }
+
+    /**
+     * Take the strongest signal of the latest scan, replacing the ones of the previous scans.
+     * The signal of the current connection is kept if stronger.
+     *
+     * @param rssi the strongest signal, or Integer.MAX_VALUE if the network was not seen
+     */
+    void setScanRssi(int rssi) {
+        int newRssi = (mInfo != null) ? mInfo.getRssi() : Integer.MAX_VALUE;
+        if (rssi != Integer.MAX_VALUE && (newRssi == Integer.MAX_VALUE || rssi > newRssi)) {
+            newRssi = rssi;
+        }
+        if (newRssi == mRssi) {
+            return;
+        }
+        final int oldLevel = getLevel();
+        mRssi = newRssi;
+        if (getLevel() != oldLevel) {
+            notifyChanged();
+        }
+    }
+
+    /**
+     * Have the list sort the access points again, after their signal strength changed.
+     */
+    void notifyOrderChanged() {
+        notifyHierarchyChanged();
+    }
+
     /** Return whether the given {@link WifiInfo} is for this access point. */
     private boolean isInfoForThisAccessPoint(WifiInfo info) {
         if (networkId != WifiConfiguration.INVALID_NETWORK_ID) {
@@ -376,6 +424,7 @@ class AccessPoint extends Preference {
     }
 
     void update(WifiInfo info, NetworkInfo networkInfo) {
+        final boolean wasActive = isActive();
         boolean reorder = false;
         if (info != null && isInfoForThisAccessPoint(info)) {
             reorder = (mInfo == null);
@@ -389,7 +438,7 @@ class AccessPoint extends Preference {
             mNetworkInfo = null;
             refresh();
         }
-        if (reorder) {
+        if (reorder || isActive() != wasActive) {
             notifyHierarchyChanged();
         }
     }
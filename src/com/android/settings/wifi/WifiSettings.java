@@ -42,7 +42,10 @@ import android.net.wifi.WpsInfo;
 import android.nfc.NfcAdapter;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.UserHandle;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
@@ -68,7 +71,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -127,6 +132,18 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     private final AtomicBoolean mConnected = new AtomicBoolean(false);
 
+    // Merges the saved networks and the scan results off the main thread
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
+
+    /** The access points shown, by {@link #makeKey}.  Only used on the main thread. */
+    private final HashMap<String, AccessPoint> mAccessPoints = new HashMap<String, AccessPoint>();
+    // Incremented when the access points shown are dropped, merges started before are ignored
+    private int mAccessPointsGeneration;
+
+    // Network to open the connect dialog on once the access points are shown
+    private String mStartConnectSsid;
+
     private WifiDialog mDialog;
     private WriteWifiConfigToNfcDialog mWifiToNfcDialog;
 
@@ -172,6 +189,55 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
     }
 
+    /** The saved networks and scan results of a network, merged on the worker thread. */
+    private static class NetworkEntry {
+        WifiConfiguration config;
+        final ArrayList<ScanResult> results = new ArrayList<ScanResult>(3);
+        // Strongest signal of the results, Integer.MAX_VALUE if there is none
+        int bestRssi = Integer.MAX_VALUE;
+    }
+
+    private static class MergedNetworks {
+        final int generation;
+        // null if the saved networks could not be read
+        Boolean hasSavedNetworks;
+        final HashMap<String, NetworkEntry> networks = new HashMap<String, NetworkEntry>();
+
+        MergedNetworks(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    private static final int MSG_MERGE_NETWORKS = 1;
+    private static final int MSG_SHOW_NETWORKS = 2;
+
+    private class WorkerHandler extends Handler {
+        WorkerHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_MERGE_NETWORKS:
+                    final MergedNetworks merged = mergeNetworks(mWifiManager, msg.arg1);
+                    mHandler.obtainMessage(MSG_SHOW_NETWORKS, merged).sendToTarget();
+                    break;
+            }
+        }
+    }
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_SHOW_NETWORKS:
+                    showNetworks((MergedNetworks) msg.obj);
+                    break;
+            }
+        }
+    };
+
     private static class Scanner extends Handler {
         private int mRetry = 0;
         private WifiSettings mWifiSettings = null;
@@ -238,6 +304,10 @@ public class WifiSettings extends RestrictedSettingsFragment
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
 
+        mWorkerThread = new HandlerThread("WifiSettings", Process.THREAD_PRIORITY_BACKGROUND);
+        mWorkerThread.start();
+        mWorkerHandler = new WorkerHandler(mWorkerThread.getLooper());
+
         mWifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
 
         mConnectListener = new WifiManager.ActionListener() {
@@ -317,23 +387,20 @@ public class WifiSettings extends RestrictedSettingsFragment
         setHasOptionsMenu(true);
 
         if (intent.hasExtra(EXTRA_START_CONNECT_SSID)) {
-            String ssid = intent.getStringExtra(EXTRA_START_CONNECT_SSID);
+            mStartConnectSsid = intent.getStringExtra(EXTRA_START_CONNECT_SSID);
             updateAccessPoints();
-            PreferenceScreen preferenceScreen = getPreferenceScreen();
-            for (int i = 0; i < preferenceScreen.getPreferenceCount(); i++) {
-                Preference preference = preferenceScreen.getPreference(i);
-                if (preference instanceof AccessPoint) {
-                    AccessPoint accessPoint = (AccessPoint) preference;
-                    if (ssid.equals(accessPoint.ssid) && accessPoint.networkId == -1
-                            && accessPoint.security != AccessPoint.SECURITY_NONE) {
-                        onPreferenceTreeClick(preferenceScreen, preference);
-                        break;
-                    }
-                }
-            }
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mWorkerThread != null) {
+            mWorkerThread.quit();
+        }
+        mHandler.removeMessages(MSG_SHOW_NETWORKS);
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
@@ -652,25 +719,14 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints =
-                        constructAccessPoints(getActivity(), mWifiManager, mLastInfo,
-                                mLastNetworkInfo);
-                getPreferenceScreen().removeAll();
-                if (accessPoints.size() == 0) {
-                    addMessagePreference(R.string.wifi_empty_list_wifi_on);
-                }
-
-                for (AccessPoint accessPoint : accessPoints) {
-                    // Ignore access points that are out of range.
-                    if (accessPoint.getLevel() != -1) {
-                        getPreferenceScreen().addPreference(accessPoint);
-                    }
-                }
+                // The access points are updated once merged, see showNetworks()
+                mWorkerHandler.removeMessages(MSG_MERGE_NETWORKS);
+                mWorkerHandler.obtainMessage(MSG_MERGE_NETWORKS, mAccessPointsGeneration, 0)
+                        .sendToTarget();
                 break;
 
             case WifiManager.WIFI_STATE_ENABLING:
-                getPreferenceScreen().removeAll();
+                removeAccessPoints();
                 break;
 
             case WifiManager.WIFI_STATE_DISABLING:
@@ -706,12 +762,161 @@ public class WifiSettings extends RestrictedSettingsFragment
                 mEmptyView.append(charSeq);
             }
         }
-        getPreferenceScreen().removeAll();
+        removeAccessPoints();
     }
 
     private void addMessagePreference(int messageId) {
         if (mEmptyView != null) mEmptyView.setText(messageId);
+        removeAccessPoints();
+    }
+
+    private void removeAccessPoints() {
         getPreferenceScreen().removeAll();
+        mAccessPoints.clear();
+        mAccessPointsGeneration++;
+    }
+
+    private static String makeKey(String ssid, int security) {
+        return security + "," + ssid;
+    }
+
+    /**
+     * Group the saved networks and the scan results by ssid and security.  Called on the
+     * worker thread.
+     */
+    private static MergedNetworks mergeNetworks(WifiManager wifiManager, int generation) {
+        final MergedNetworks merged = new MergedNetworks(generation);
+
+        final List<WifiConfiguration> configs = wifiManager.getConfiguredNetworks();
+        if (configs != null) {
+            merged.hasSavedNetworks = configs.size() > 0;
+            for (WifiConfiguration config : configs) {
+                if (config.selfAdded && config.numAssociation == 0) {
+                    continue;
+                }
+                final String ssid = (config.SSID == null ? ""
+                        : AccessPoint.removeDoubleQuotes(config.SSID));
+                final String key = makeKey(ssid, AccessPoint.getSecurity(config));
+                if (!merged.networks.containsKey(key)) {
+                    final NetworkEntry entry = new NetworkEntry();
+                    entry.config = config;
+                    merged.networks.put(key, entry);
+                }
+            }
+        }
+
+        final List<ScanResult> results = wifiManager.getScanResults();
+        if (results != null) {
+            for (ScanResult result : results) {
+                // Ignore hidden and ad-hoc networks.
+                if (result.SSID == null || result.SSID.length() == 0 ||
+                        result.capabilities.contains("[IBSS]")) {
+                    continue;
+                }
+                final String key = makeKey(result.SSID, AccessPoint.getSecurity(result));
+                NetworkEntry entry = merged.networks.get(key);
+                if (entry == null) {
+                    entry = new NetworkEntry();
+                    merged.networks.put(key, entry);
+                }
+                entry.results.add(result);
+                if (entry.bestRssi == Integer.MAX_VALUE || result.level > entry.bestRssi) {
+                    entry.bestRssi = result.level;
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Update the access points shown from merged networks: the access points already shown
+     * are updated in place, only the new ones are added and the gone ones removed.
+     */
+    private void showNetworks(MergedNetworks merged) {
+        final Activity activity = getActivity();
+        if (activity == null || merged.generation != mAccessPointsGeneration
+                || mWifiManager.getWifiState() != WifiManager.WIFI_STATE_ENABLED) {
+            return;
+        }
+
+        // Update "Saved Networks" menu option.
+        if (merged.hasSavedNetworks != null && savedNetworksExist != merged.hasSavedNetworks) {
+            savedNetworksExist = merged.hasSavedNetworks;
+            activity.invalidateOptionsMenu();
+        }
+
+        if (merged.networks.isEmpty()) {
+            addMessagePreference(R.string.wifi_empty_list_wifi_on);
+            return;
+        }
+
+        final PreferenceScreen screen = getPreferenceScreen();
+        final Iterator<Map.Entry<String, AccessPoint>> it = mAccessPoints.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, AccessPoint> shown = it.next();
+            if (!merged.networks.containsKey(shown.getKey())) {
+                screen.removePreference(shown.getValue());
+                it.remove();
+            }
+        }
+
+        boolean reorder = false;
+        for (Map.Entry<String, NetworkEntry> network : merged.networks.entrySet()) {
+            final String key = network.getKey();
+            final NetworkEntry entry = network.getValue();
+            AccessPoint accessPoint = mAccessPoints.get(key);
+            final boolean isNew = (accessPoint == null);
+            if (isNew) {
+                accessPoint = (entry.config != null)
+                        ? new AccessPoint(activity, entry.config)
+                        : new AccessPoint(activity, entry.results.get(0));
+                if (mLastInfo != null && mLastNetworkInfo != null) {
+                    accessPoint.update(mLastInfo, mLastNetworkInfo);
+                }
+            }
+
+            final boolean wasActive = accessPoint.isActive();
+            final int oldLevel = accessPoint.getLevel();
+            if (!isNew && accessPoint.updateConfig(entry.config)) {
+                // Whether the connection is the one of this access point depends on its id
+                accessPoint.update(mLastInfo, mLastNetworkInfo);
+                reorder = true;
+            }
+            // Set first, so that update(ScanResult) does not see a stronger signal
+            accessPoint.setScanRssi(entry.bestRssi);
+            for (int i = 0; i < entry.results.size(); i++) {
+                accessPoint.update(entry.results.get(i));
+            }
+
+            // Ignore access points that are out of range.
+            if (accessPoint.getLevel() == -1) {
+                if (!isNew) {
+                    screen.removePreference(accessPoint);
+                    mAccessPoints.remove(key);
+                }
+            } else if (isNew) {
+                mAccessPoints.put(key, accessPoint);
+                screen.addPreference(accessPoint);
+            } else if (accessPoint.getLevel() != oldLevel
+                    || accessPoint.isActive() != wasActive) {
+                reorder = true;
+            }
+        }
+        if (reorder && !mAccessPoints.isEmpty()) {
+            mAccessPoints.values().iterator().next().notifyOrderChanged();
+        }
+
+        if (mStartConnectSsid != null) {
+            final String ssid = mStartConnectSsid;
+            mStartConnectSsid = null;
+            for (AccessPoint accessPoint : mAccessPoints.values()) {
+                if (ssid.equals(accessPoint.ssid) && accessPoint.networkId == -1
+                        && accessPoint.security != AccessPoint.SECURITY_NONE) {
+                    onPreferenceTreeClick(screen, accessPoint);
+                    break;
+                }
+            }
+        }
     }
 
     /** Returns sorted list of access points */
@@ -940,7 +1145,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             mScanner.resume();
         }
 
-        getPreferenceScreen().removeAll();
+        removeAccessPoints();
     }
 
     /**
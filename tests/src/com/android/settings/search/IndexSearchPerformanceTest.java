@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Micro benchmark comparing the bound parameters query path of {@link Index} with the previous
+ * one, which was building a new SQL string for every keystroke.
+ */
+@LargeTest
+public class IndexSearchPerformanceTest extends AndroidTestCase {
+
+    private static final String LOG_TAG = "IndexSearchPerformanceTest";
+
+    private static final int ITERATIONS = 50;
+
+    // Simulates typing a few words, one keystroke at a time
+    private static final String[] QUERIES = new String[] {
+            "w", "wi", "wif", "wifi",
+            "b", "bl", "blu", "blue",
+            "d", "di", "dis", "disp", "displ", "displa", "display"
+    };
+
+    private static final String[] SELECT_COLUMNS = new String[] {
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.ICON,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF
+    };
+
+    private static final String[] MATCH_COLUMNS_PRIMARY = {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_KEYWORDS
+    };
+
+    private static final String[] MATCH_COLUMNS_SECONDARY = {
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES
+    };
+
+    private Index mIndex;
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = Index.getInstance(getContext());
+        mDatabase = IndexDatabaseHelper.getInstance(getContext()).getReadableDatabase();
+    }
+
+    public void testBoundParametersQueryPath() {
+        // Check that both paths find the same preferences, and warm them up.  The rows are
+        // compared as sets: the legacy EXCEPT dedupes them, and the ranked path only returns
+        // the best ones.
+        for (String query : QUERIES) {
+            final Set<String> legacy = getTitles(searchWithStringBuilding(query));
+            final Set<String> bound = getTitles(mIndex.searchDatabase(mDatabase, query));
+            assertTrue("Unexpected results for '" + query + "'", legacy.containsAll(bound));
+            if (legacy.size() <= Index.MAX_SEARCH_RESULTS) {
+                assertEquals("Results for '" + query + "'", legacy, bound);
+            }
+        }
+
+        final Result legacy = run(true);
+        final Result bound = run(false);
+
+        Log.i(LOG_TAG, "String building path: " + legacy);
+        Log.i(LOG_TAG, "Bound parameters path: " + bound);
+    }
+
+    private Result run(boolean legacy) {
+        final int queries = ITERATIONS * QUERIES.length;
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        final long start = System.nanoTime();
+        try {
+            for (int n = 0; n < ITERATIONS; n++) {
+                for (String query : QUERIES) {
+                    count(legacy ? searchWithStringBuilding(query)
+                            : mIndex.searchDatabase(mDatabase, query));
+                }
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        final Result result = new Result();
+        result.microsPerQuery = elapsed / 1000 / queries;
+        result.allocationsPerQuery = Debug.getThreadAllocCount() / queries;
+        result.bytesPerQuery = Debug.getThreadAllocSize() / queries;
+        return result;
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the distinct title and screen title pairs of the rows
+     */
+    private static Set<String> getTitles(Cursor cursor) {
+        final Set<String> titles = new HashSet<String>();
+        try {
+            final int titleIndex = cursor.getColumnIndexOrThrow(IndexColumns.DATA_TITLE);
+            final int screenTitleIndex = cursor.getColumnIndexOrThrow(IndexColumns.SCREEN_TITLE);
+            while (cursor.moveToNext()) {
+                titles.add(cursor.getString(titleIndex) + "\n" +
+                        cursor.getString(screenTitleIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return titles;
+    }
+
+    /**
+     * The query path as it was before the statements were using bound parameters.
+     */
+    private Cursor searchWithStringBuilding(String query) {
+        final Cursor[] cursors = new Cursor[2];
+
+        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
+        cursors[0] = mDatabase.rawQuery(primarySql, null);
+
+        StringBuilder sql = new StringBuilder(
+                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
+        sql.append(" EXCEPT ");
+        sql.append(primarySql);
+        cursors[1] = mDatabase.rawQuery(sql.toString(), null);
+
+        return new MergeCursor(cursors);
+    }
+
+    private static String buildSearchSQL(String query, String[] columnNames,
+            boolean withOrderBy) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        for (int n = 0; n < SELECT_COLUMNS.length; n++) {
+            sb.append(SELECT_COLUMNS[n]);
+            if (n < SELECT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(" FROM ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" WHERE ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ");
+
+        final String value = query + "*";
+        StringBuilder match = new StringBuilder();
+        for (int n = 0; n < columnNames.length; n++) {
+            match.append(columnNames[n]);
+            match.append(":");
+            match.append(value);
+            if (n < columnNames.length - 1) {
+                match.append(" OR ");
+            }
+        }
+        DatabaseUtils.appendEscapedSQLString(sb, match.toString());
+
+        sb.append(" AND ");
+        sb.append(IndexColumns.LOCALE);
+        sb.append(" = ");
+        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
+        sb.append(" AND ");
+        sb.append(IndexColumns.ENABLED);
+        sb.append(" = 1");
+        if (withOrderBy) {
+            sb.append(" ORDER BY ");
+            sb.append(IndexColumns.DATA_RANK);
+        }
+        return sb.toString();
+    }
+
+    private static class Result {
+        long microsPerQuery;
+        long allocationsPerQuery;
+        long bytesPerQuery;
+
+        @Override
+        public String toString() {
+            return microsPerQuery + " us/query, " + allocationsPerQuery + " allocations/query, " +
+                    bytesPerQuery + " bytes/query";
+        }
+    }
+}